@@ -0,0 +1,209 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static de.ba.oiam.keycloak.bundid.BenchmarkFakes.proxy;
+
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionEmailMapper;
+import de.ba.oiam.keycloak.bundid.mapper.RetrievalTimestampAttributeMapper;
+import de.ba.oiam.keycloak.idp.AuthSessionAttributeMapper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.datatype.DatatypeFactory;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.broker.saml.SAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderMapperSyncMode;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@code preprocessFederatedIdentity} phase of a BundID login, i.e. all mappers of the identity provider
+ * applied to one assertion. The score is ns per login, {@code gc.alloc.rate.norm} of {@code -prof gc} the bytes per
+ * login.
+ * <p>
+ * The assertion is shaped like a BundID response: {@code attributeCount} URI-named attributes with friendly names and
+ * an akdb {@code TrustLevel}. Every attribute is mapped by a BundID mapper via its OID and by an
+ * {@link AuthSessionAttributeMapper} via its friendly name, every fourth one additionally by a compact BundID mapper
+ * via its friendly name in different case. One email and one retrieval timestamp mapper complete the realm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AssertionMappingBenchmark {
+    private static final String[][] BUNDID_ATTRIBUTES = {
+        {"urn:oid:2.5.4.42", "givenName"},
+        {"urn:oid:2.5.4.4", "surname"},
+        {"urn:oid:0.9.2342.19200300.100.1.3", "mail"},
+        {"urn:oid:1.2.40.0.10.2.1.1.149", "bPK2"},
+        {"urn:oid:1.2.40.0.10.2.1.1.55", "birthdate"},
+        {"urn:oid:1.3.6.1.5.5.7.9.2", "placeOfBirth"},
+        {"urn:oid:1.2.40.0.10.2.1.1.225599", "birthName"},
+        {"urn:oid:2.5.4.18", "postalAddress"},
+        {"urn:oid:1.3.6.1.4.1.25484.494450.3", "AssertionProvedBy"},
+        {"urn:oid:1.3.6.1.4.1.33592.1.3.5", "gender"},
+    };
+    private static final String[] TRUST_LEVELS = {"SUBSTANTIELL", "HOCH", "NORMAL"};
+
+    @Param({"10", "25", "40"})
+    int attributeCount;
+
+    private final Map<String, IdentityProviderMapper> mappers = new HashMap<>();
+    private final List<IdentityProviderMapperModel> mapperModels = new ArrayList<>();
+    private AssertionType assertion;
+    private IdentityProviderModel idpConfig;
+    private RealmModel realm;
+    private KeycloakSessionFactory sessionFactory;
+    private KeycloakTransactionManager transactionManager;
+
+    @Setup
+    public void setup() throws Exception {
+        for (IdentityProviderMapper mapper : List.of(
+                new BundIdUserSessionAttributeMapper(),
+                new BundIdUserSessionEmailMapper(),
+                new AuthSessionAttributeMapper(),
+                new RetrievalTimestampAttributeMapper())) {
+            mappers.put(mapper.getId(), mapper);
+        }
+
+        assertion = new AssertionType("response", DatatypeFactory.newInstance().newXMLGregorianCalendar());
+        AttributeStatementType statement = new AttributeStatementType();
+        for (int i = 0; i < attributeCount; i++) {
+            String name = i < BUNDID_ATTRIBUTES.length ? BUNDID_ATTRIBUTES[i][0] : "urn:oid:1.2.276.0.76.3." + i;
+            String friendlyName = i < BUNDID_ATTRIBUTES.length ? BUNDID_ATTRIBUTES[i][1] : "customAttribute" + i;
+
+            AttributeType attribute = new AttributeType(name);
+            attribute.setFriendlyName(friendlyName);
+            attribute.setNameFormat(JBossSAMLURIConstants.ATTRIBUTE_FORMAT_URI.get());
+            attribute.getOtherAttributes()
+                    .put(BundIdUserSessionAttributeMapper.TRUST_LEVEL_QNAME, TRUST_LEVELS[i % TRUST_LEVELS.length]);
+            attribute.addAttributeValue(i == 2 ? "max.mustermann@example.org" : "Wert " + i);
+            statement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute));
+
+            mapperModels.add(createModel(
+                    i == 2 ? BundIdUserSessionEmailMapper.PROVIDER_ID : BundIdUserSessionAttributeMapper.PROVIDER_ID,
+                    BundIdUserSessionAttributeMapper.ATTRIBUTE_NAME,
+                    name,
+                    BundIdUserSessionAttributeMapper.SESSION_ATTRIBUTE,
+                    friendlyName));
+            mapperModels.add(createModel(
+                    AuthSessionAttributeMapper.PROVIDER_ID,
+                    AuthSessionAttributeMapper.ATTRIBUTE_FRIENDLY_NAME,
+                    friendlyName,
+                    AuthSessionAttributeMapper.SESSION_ATTRIBUTE,
+                    "auth." + friendlyName));
+            if (i % 4 == 0) {
+                IdentityProviderMapperModel compact = createModel(
+                        BundIdUserSessionAttributeMapper.PROVIDER_ID,
+                        BundIdUserSessionAttributeMapper.ATTRIBUTE_FRIENDLY_NAME,
+                        friendlyName.toUpperCase(Locale.ROOT),
+                        BundIdUserSessionAttributeMapper.SESSION_ATTRIBUTE,
+                        friendlyName + "Compact");
+                compact.getConfig().put(BundIdUserSessionAttributeMapper.SESSION_NOTE_COMPACT, "true");
+                mapperModels.add(compact);
+            }
+        }
+        assertion.addStatement(statement);
+        mapperModels.add(createModel(
+                RetrievalTimestampAttributeMapper.PROVIDER_ID,
+                RetrievalTimestampAttributeMapper.SESSION_ATTRIBUTE,
+                "ba.bundid_retrieval_time"));
+
+        idpConfig = new IdentityProviderModel();
+        idpConfig.setAlias("bundid");
+        realm = proxy(RealmModel.class, (name, args) -> "getIdentityProviderMappersByAliasStream".equals(name)
+                ? mapperModels.stream()
+                : null);
+        sessionFactory = proxy(
+                KeycloakSessionFactory.class,
+                (name, args) -> "getProviderFactory".equals(name) ? mappers.get((String) args[1]) : null);
+        transactionManager = proxy(KeycloakTransactionManager.class, (name, args) -> null);
+    }
+
+    @Benchmark
+    public Object preprocessFederatedIdentity() {
+        KeycloakSession session = createSession();
+        Map<String, String> userSessionNotes = new HashMap<>();
+        Map<String, String> authNotes = new HashMap<>();
+        AuthenticationSessionModel authSession = proxy(AuthenticationSessionModel.class, (name, args) -> switch (name) {
+            case "setUserSessionNote" -> userSessionNotes.put((String) args[0], (String) args[1]);
+            case "getUserSessionNotes" -> userSessionNotes;
+            case "setAuthNote" -> authNotes.put((String) args[0], (String) args[1]);
+            default -> null;
+        });
+        BrokeredIdentityContext context = new BrokeredIdentityContext("user", idpConfig);
+        context.getContextData().put(SAMLEndpoint.SAML_ASSERTION, assertion);
+        context.setAuthenticationSession(authSession);
+
+        for (IdentityProviderMapperModel model : mapperModels) {
+            mappers.get(model.getIdentityProviderMapper()).preprocessFederatedIdentity(session, realm, model, context);
+        }
+        return userSessionNotes;
+    }
+
+    private KeycloakSession createSession() {
+        Map<String, Object> attributes = new HashMap<>();
+        return proxy(KeycloakSession.class, (name, args) -> switch (name) {
+            case "getAttribute" -> attributes.get((String) args[0]);
+            case "setAttribute" -> attributes.put((String) args[0], args[1]);
+            case "removeAttribute" -> attributes.remove((String) args[0]);
+            case "getKeycloakSessionFactory" -> sessionFactory;
+            case "getTransactionManager" -> transactionManager;
+            default -> null;
+        });
+    }
+
+    private IdentityProviderMapperModel createModel(String providerId, String... config) {
+        IdentityProviderMapperModel model = new IdentityProviderMapperModel();
+        model.setId("mapper-" + mapperModels.size());
+        model.setIdentityProviderMapper(providerId);
+        model.setConfig(new HashMap<>());
+        model.setSyncMode(IdentityProviderMapperSyncMode.INHERIT);
+        for (int i = 0; i < config.length; i += 2) {
+            model.getConfig().put(config[i], config[i + 1]);
+        }
+        return model;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Minimal stand-ins for Keycloak interfaces. Unlike Mockito mocks they do not record invocations, so they add next to
+ * nothing to the measured time and allocations.
+ */
+final class BenchmarkFakes {
+    private BenchmarkFakes() {}
+
+    interface Handler {
+        Object invoke(String methodName, Object[] args);
+    }
+
+    static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(
+                type.getClassLoader(),
+                new Class<?>[] {type},
+                (proxy, method, args) -> handler.invoke(method.getName(), args)));
+    }
+}
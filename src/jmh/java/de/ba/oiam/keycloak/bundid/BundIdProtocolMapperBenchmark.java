@@ -0,0 +1,171 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static de.ba.oiam.keycloak.bundid.BenchmarkFakes.proxy;
+
+import de.ba.oiam.keycloak.bundid.mapper.BundIdProtocolMapper;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import de.ba.oiam.keycloak.bundid.mapper.SessionNoteManifest;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link BundIdProtocolMapper} for the access token, ID token, userinfo and token response of a user session
+ * with {@code noteCount} notes, {@code bundIdShare} percent of them {@code ba.bundid_prop_} notes.
+ * <p>
+ * With {@code manifest=true} the session carries the note manifest written by the BundID mappers and the mapper has
+ * {@code manifest.only} enabled, so the claims are served from the per-session cache of the mapper.
+ * {@code manifest=false} is the default, where all notes are scanned for every token.
+ * <p>
+ * {@code idTokenShared} issues ID tokens from 8 threads with one {@link ProtocolMapperModel}, as Keycloak does for
+ * concurrent requests of the same client. Its {@code wrongClaims} counter must stay 0.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundIdProtocolMapperBenchmark {
+    private static final String PREFIX = BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX;
+
+    @Param({"0", "20", "200"})
+    int noteCount;
+
+    @Param({"10", "50", "100"})
+    int bundIdShare;
+
+    @Param({"true", "false"})
+    boolean manifest;
+
+    private final BundIdProtocolMapper mapper = new BundIdProtocolMapper();
+    private ProtocolMapperModel mappingModel;
+    private KeycloakSession session;
+    private UserSessionModel userSession;
+    private Map<String, Object> expectedClaims;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Claims {
+        public long wrongClaims;
+    }
+
+    @Setup
+    public void setup() {
+        mappingModel = new ProtocolMapperModel();
+        mappingModel.setId("bundid-protocol-mapper");
+        mappingModel.setName("bundid");
+        mappingModel.setProtocol(OIDCLoginProtocol.LOGIN_PROTOCOL);
+        mappingModel.setProtocolMapper(BundIdProtocolMapper.PROVIDER_ID);
+        mappingModel.setConfig(new HashMap<>());
+        mappingModel.getConfig().put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        mappingModel.getConfig().put(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, "true");
+        mappingModel.getConfig().put(OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO, "true");
+        mappingModel.getConfig().put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN_RESPONSE, "true");
+        mappingModel.getConfig().put(OIDCAttributeMapperHelper.JSON_TYPE, "String");
+
+        Map<String, String> notes = new HashMap<>();
+        expectedClaims = new LinkedHashMap<>();
+        StringBuilder manifestNote = new StringBuilder("#1");
+        int bundIdNotes = noteCount * bundIdShare / 100;
+        for (int i = 0; i < noteCount; i++) {
+            if (i < bundIdNotes) {
+                // Every attribute comes with its verified level
+                String name = i % 2 == 0
+                        ? "attribute" + i
+                        : "attribute" + (i - 1) + BundIdUserSessionAttributeMapper.VERIFIED_LEVEL_SUFFIX;
+                String value = i % 2 == 0 ? "Wert " + i : AuthnLevel.STORK3.getFullname();
+                notes.put(PREFIX + name, value);
+                expectedClaims.put(name, value);
+                manifestNote.append('\n').append(name);
+            } else {
+                notes.put("client.note." + i, "value " + i);
+            }
+        }
+        if (manifest) {
+            notes.put(SessionNoteManifest.NOTE, manifestNote.toString());
+            mappingModel.getConfig().put(BundIdProtocolMapper.MANIFEST_ONLY, "true");
+        }
+        // The client has no attributes, so no lightweight access tokens
+        ClientModel client = proxy(ClientModel.class, (name, args) -> null);
+        KeycloakContext context = proxy(KeycloakContext.class, (name, args) -> client);
+        session = proxy(KeycloakSession.class, (name, args) -> "getContext".equals(name) ? context : null);
+
+        userSession = proxy(UserSessionModel.class, (name, args) -> switch (name) {
+            case "getId" -> "user-session";
+            case "getNote" -> notes.get((String) args[0]);
+            case "getNotes" -> notes;
+            default -> null;
+        });
+    }
+
+    @Benchmark
+    public AccessToken accessToken() {
+        return mapper.transformAccessToken(new AccessToken(), mappingModel, session, userSession, null);
+    }
+
+    @Benchmark
+    public IDToken idToken() {
+        return mapper.transformIDToken(new IDToken(), mappingModel, session, userSession, null);
+    }
+
+    @Benchmark
+    public AccessToken userInfo() {
+        return mapper.transformUserInfoToken(new AccessToken(), mappingModel, session, userSession, null);
+    }
+
+    @Benchmark
+    public AccessTokenResponse tokenResponse() {
+        return mapper.transformAccessTokenResponse(new AccessTokenResponse(), mappingModel, session, userSession, null);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public IDToken idTokenShared(Claims claims) {
+        IDToken token = mapper.transformIDToken(new IDToken(), mappingModel, session, userSession, null);
+        if (!expectedClaims.equals(token.getOtherClaims())) {
+            claims.wrongClaims++;
+        }
+        return token;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the former {@code IDP_NAME_PATTERN} regex with {@link IdpAliasResolver} for a realm with many brokers, of
+ * which only one is BundID.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdpAliasResolverBenchmark {
+    private static final Pattern IDP_NAME_PATTERN = Pattern.compile(".*/broker/(.+)/endpoint.*");
+    private static final String ACTIVE_FOR_IDP = "bundid";
+
+    @Param({"1", "10", "50"})
+    int brokerCount;
+
+    private URI[] urls;
+    private IdpAliasResolver resolver;
+    private int next;
+
+    @Setup
+    public void setup() {
+        urls = new URI[brokerCount];
+        urls[0] = URI.create("https://login.example.org/realms/citizens/broker/bundid/endpoint");
+        for (int i = 1; i < brokerCount; i++) {
+            urls[i] = URI.create("https://login.example.org/realms/citizens/broker/partner-idp-" + i + "/endpoint");
+        }
+        resolver = new IdpAliasResolver();
+    }
+
+    private URI nextUrl() {
+        // Fresh URI copies, as Keycloak builds a new AuthnRequest per login
+        URI url = urls[next];
+        next = (next + 1) % urls.length;
+        return URI.create(url.toString());
+    }
+
+    @Benchmark
+    public void baseline(Blackhole blackhole) {
+        blackhole.consume(nextUrl());
+    }
+
+    @Benchmark
+    public void regex(Blackhole blackhole) {
+        Matcher matcher = IDP_NAME_PATTERN.matcher(nextUrl().getPath());
+        blackhole.consume(matcher.matches() && ACTIVE_FOR_IDP.equalsIgnoreCase(matcher.group(1)));
+    }
+
+    @Benchmark
+    public void resolver(Blackhole blackhole) {
+        String alias = resolver.resolve(nextUrl());
+        blackhole.consume(alias != null && ACTIVE_FOR_IDP.equalsIgnoreCase(alias));
+    }
+}
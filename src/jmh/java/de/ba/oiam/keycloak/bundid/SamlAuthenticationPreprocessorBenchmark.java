@@ -0,0 +1,138 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static de.ba.oiam.keycloak.bundid.BenchmarkFakes.proxy;
+
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.keycloak.Config;
+import org.keycloak.dom.saml.v2.protocol.AuthnRequestType;
+import org.keycloak.models.Constants;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link SamlAuthenticationPreprocessorImpl#beforeSendingLoginRequest} for a realm with {@code mapperCount}
+ * BundID attribute mappers, each requesting one OID.
+ * <p>
+ * {@code extensionTemplateTtl=0} disables the extension cache, so every request runs all
+ * {@link SamlAuthnRequestUpdater}s and marshals the extension. Throughput and the latency percentiles of
+ * {@code SampleTime} are reported, the allocation rate with {@code -prof gc} (the default of {@code jmh.args}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SamlAuthenticationPreprocessorBenchmark {
+    private static final URI CONSUMER_SERVICE_URL =
+            URI.create("https://login.example.org/realms/citizens/broker/bundid/endpoint");
+
+    @Param({"0", "5", "25", "100"})
+    int mapperCount;
+
+    @Param({"true", "false"})
+    boolean displayInformation;
+
+    @Param({"60", "0"})
+    long extensionTemplateTtl;
+
+    private SamlAuthenticationPreprocessorImpl preprocessor;
+    private AuthenticationSessionModel authSession;
+
+    @Setup
+    public void setup() {
+        Map<String, String> config = new HashMap<>();
+        config.put("extensionTemplateTtl", String.valueOf(extensionTemplateTtl));
+        if (displayInformation) {
+            config.put("onlineServiceId", "BMI-4711");
+            config.put("organizationDisplayName", "Bundesagentur für Arbeit");
+        }
+        preprocessor = new SamlAuthenticationPreprocessorImpl();
+        preprocessor.init(createConfig(config));
+
+        BundIdUserSessionAttributeMapper mapper = new BundIdUserSessionAttributeMapper();
+        preprocessor.postInit(proxy(KeycloakSessionFactory.class, (name, args) -> switch (name) {
+            case "getProviderFactoriesStream" -> Stream.of(mapper);
+            case "getProviderFactory" -> mapper;
+            default -> null;
+        }));
+
+        List<IdentityProviderMapperModel> mapperModels = new ArrayList<>();
+        for (int i = 0; i < mapperCount; i++) {
+            IdentityProviderMapperModel model = new IdentityProviderMapperModel();
+            model.setId("mapper-" + i);
+            model.setIdentityProviderMapper(BundIdUserSessionAttributeMapper.PROVIDER_ID);
+            model.setConfig(new HashMap<>());
+            model.getConfig().put(BundIdUserSessionAttributeMapper.ATTRIBUTE_OID, "urn:oid:1.2.3." + i);
+            model.getConfig().put(BundIdUserSessionAttributeMapper.ATTRIBUTE_REQUIRED, String.valueOf(i % 2 == 0));
+            mapperModels.add(model);
+        }
+        RealmModel realm = proxy(RealmModel.class, (name, args) -> switch (name) {
+            case "getId" -> "citizens";
+            case "getIdentityProviderMappersByAliasStream" -> mapperModels.stream();
+            default -> null;
+        });
+        authSession = proxy(AuthenticationSessionModel.class, (name, args) -> switch (name) {
+            case "getRealm" -> realm;
+            case "getClientNote" -> Constants.REQUESTED_LEVEL_OF_AUTHENTICATION.equals(args[0]) ? "3" : null;
+            default -> null;
+        });
+    }
+
+    @Benchmark
+    public AuthnRequestType beforeSendingLoginRequest() {
+        // Keycloak builds a new AuthnRequest for every login
+        AuthnRequestType authnRequest = new AuthnRequestType("id", null);
+        authnRequest.setAssertionConsumerServiceURL(CONSUMER_SERVICE_URL);
+        return preprocessor.beforeSendingLoginRequest(authnRequest, authSession);
+    }
+
+    private static Config.Scope createConfig(Map<String, String> config) {
+        return proxy(Config.Scope.class, (name, args) -> {
+            String value = config.get((String) args[0]);
+            return switch (name) {
+                case "get" -> value != null ? value : args.length > 1 ? args[1] : null;
+                case "getInt" -> value != null ? Integer.valueOf(value) : args.length > 1 ? args[1] : null;
+                case "getLong" -> value != null ? Long.valueOf(value) : args.length > 1 ? args[1] : null;
+                case "getBoolean" -> value != null ? Boolean.valueOf(value) : args.length > 1 ? args[1] : null;
+                default -> null;
+            };
+        });
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static de.ba.oiam.keycloak.bundid.BenchmarkFakes.proxy;
+
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.datatype.DatatypeFactory;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.saml.SAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderMapperSyncMode;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the login of an existing user, where every BundID mapper runs in {@code preprocessFederatedIdentity} and
+ * again in {@code updateBrokeredUser} within one transaction.
+ * <p>
+ * Keycloak writes a changed authentication session to its cache once when the transaction commits, so
+ * {@code cacheUpdates} counts the logins which changed the session at all. {@code noteWrites} counts the
+ * {@code setUserSessionNote} calls, which only change the session in memory. {@code noteReads} counts the calls of
+ * {@code getUserSessionNotes}, each of which copies all notes like Keycloak does. Divide them by {@code logins}.
+ * <p>
+ * {@code direct} disables the note buffer by passing no session. {@code unchanged} maps into an authentication session
+ * which already holds the same notes, e.g. a repeated mapping of the same assertion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionNoteBufferBenchmark {
+
+    @Param({"5", "25"})
+    int mapperCount;
+
+    private final BundIdUserSessionAttributeMapper mapper = new BundIdUserSessionAttributeMapper();
+    private final List<IdentityProviderMapperModel> mapperModels = new ArrayList<>();
+    private AssertionType assertion;
+    private IdentityProviderModel idpConfig;
+    private Map<String, String> mappedNotes;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Writes {
+        public long cacheUpdates;
+        public long noteWrites;
+        public long noteReads;
+        public long logins;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        assertion = new AssertionType("response", DatatypeFactory.newInstance().newXMLGregorianCalendar());
+        AttributeStatementType statement = new AttributeStatementType();
+        for (int i = 0; i < mapperCount; i++) {
+            AttributeType attribute = new AttributeType("urn:oid:1.2.3." + i);
+            attribute.getOtherAttributes().put(BundIdUserSessionAttributeMapper.TRUST_LEVEL_QNAME, "SUBSTANTIELL");
+            attribute.addAttributeValue("value-" + i);
+            statement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute));
+
+            IdentityProviderMapperModel model = new IdentityProviderMapperModel();
+            model.setIdentityProviderMapper(BundIdUserSessionAttributeMapper.PROVIDER_ID);
+            model.setConfig(new HashMap<>());
+            model.setSyncMode(IdentityProviderMapperSyncMode.INHERIT);
+            model.getConfig().put(BundIdUserSessionAttributeMapper.ATTRIBUTE_NAME, "urn:oid:1.2.3." + i);
+            model.getConfig().put(BundIdUserSessionAttributeMapper.SESSION_ATTRIBUTE, "attribute" + i);
+            mapperModels.add(model);
+        }
+        assertion.addStatement(statement);
+
+        idpConfig = new IdentityProviderModel();
+        idpConfig.setAlias("bundid");
+        idpConfig.setSyncMode(IdentityProviderSyncMode.FORCE);
+        mappedNotes = login(createSession(), new HashMap<>(), new Writes());
+    }
+
+    @Benchmark
+    public Object direct(Writes writes) {
+        return login(null, new HashMap<>(), writes);
+    }
+
+    @Benchmark
+    public Object buffered(Writes writes) {
+        return login(createSession(), new HashMap<>(), writes);
+    }
+
+    @Benchmark
+    public Object unchanged(Writes writes) {
+        return login(createSession(), new HashMap<>(mappedNotes), writes);
+    }
+
+    private Map<String, String> login(KeycloakSession session, Map<String, String> notes, Writes writes) {
+        boolean[] changed = {false};
+        AuthenticationSessionModel authSession = proxy(AuthenticationSessionModel.class, (name, args) -> switch (name) {
+            case "setUserSessionNote" -> {
+                writes.noteWrites++;
+                changed[0] = true;
+                yield notes.put((String) args[0], (String) args[1]);
+            }
+            case "getUserSessionNotes" -> {
+                writes.noteReads++;
+                yield new HashMap<>(notes);
+            }
+            default -> null;
+        });
+        BrokeredIdentityContext context = new BrokeredIdentityContext("user", idpConfig);
+        context.getContextData().put(SAMLEndpoint.SAML_ASSERTION, assertion);
+        context.setAuthenticationSession(authSession);
+
+        for (IdentityProviderMapperModel model : mapperModels) {
+            mapper.preprocessFederatedIdentity(session, null, model, context);
+        }
+        for (IdentityProviderMapperModel model : mapperModels) {
+            mapper.updateBrokeredUser(session, null, null, model, context);
+        }
+        // The commit of the transaction
+        if (changed[0]) {
+            writes.cacheUpdates++;
+        }
+        writes.logins++;
+        return notes;
+    }
+
+    private KeycloakSession createSession() {
+        Map<String, Object> attributes = new HashMap<>();
+        return proxy(KeycloakSession.class, (name, args) -> switch (name) {
+            case "getAttribute" -> attributes.get((String) args[0]);
+            case "setAttribute" -> attributes.put((String) args[0], args[1]);
+            case "removeAttribute" -> attributes.remove((String) args[0]);
+            default -> null;
+        });
+    }
+}
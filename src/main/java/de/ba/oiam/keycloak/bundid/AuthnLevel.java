@@ -49,6 +49,16 @@ public enum AuthnLevel {
         };
     }
 
+    public static AuthnLevel fromFullname(String fullname) {
+        for (final AuthnLevel al : AuthnLevel.values()) {
+            if (al.getFullname().equals(fullname)) {
+                return al;
+            }
+        }
+
+        return null;
+    }
+
     public static AuthnLevel fromLoA(int loa) {
         if (loa > 4) {
             return STORK4;
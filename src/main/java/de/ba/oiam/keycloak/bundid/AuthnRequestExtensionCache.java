@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import org.keycloak.common.util.Time;
+
+/**
+ * Caches the {@link ExtensionTemplate} with the finished {@code akdb:AuthenticationRequest} elements per realm and
+ * identity provider alias.
+ * <p>
+ * Entries are dropped on identity provider or realm changes and additionally expire after the configured time to
+ * live, since Keycloak publishes no event when identity provider mappers are edited.
+ */
+public class AuthnRequestExtensionCache {
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+
+    public AuthnRequestExtensionCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * Returns the cached template, building it with {@code loader} if missing or expired.
+     */
+    public ExtensionTemplate get(String realmId, String idpAlias, Supplier<ExtensionTemplate> loader) {
+        Key key = new Key(realmId, idpAlias);
+        long now = Time.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expiresAt() <= now) {
+            entry = new Entry(loader.get(), now + ttlMillis);
+            entries.put(key, entry);
+        }
+        return entry.template();
+    }
+
+    public void invalidate(String realmId, String idpAlias) {
+        entries.remove(new Key(realmId, idpAlias));
+    }
+
+    public void invalidateRealm(String realmId) {
+        entries.keySet().removeIf(key -> Objects.equals(key.realmId(), realmId));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private record Key(String realmId, String idpAlias) {}
+
+    private record Entry(ExtensionTemplate template, long expiresAt) {}
+}
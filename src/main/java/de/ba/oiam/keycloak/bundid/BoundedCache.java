@@ -0,0 +1,90 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Concurrent cache with an upper bound on its number of entries.
+ * <p>
+ * Once the bound is exceeded, the entries inserted first are evicted until the cache fits again. Replacing the value of
+ * a cached key keeps its position, so entries which are still used may be evicted and are loaded again on their next
+ * use. Lookups do not lock, the bound is only enforced on insert.
+ */
+public final class BoundedCache<K, V> {
+    private final ConcurrentMap<K, V> entries = new ConcurrentHashMap<>();
+    private final Queue<K> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final int maxSize;
+
+    public BoundedCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the cached value or {@code null}
+     */
+    public V get(K key) {
+        return entries.get(key);
+    }
+
+    public void put(K key, V value) {
+        if (entries.put(key, value) != null) {
+            return;
+        }
+
+        insertionOrder.add(key);
+        while (entries.size() > maxSize) {
+            K eldest = insertionOrder.poll();
+            if (eldest == null) {
+                break;
+            }
+            entries.remove(eldest);
+        }
+    }
+
+    /**
+     * Evicts entries from the start of the insertion order as long as {@code expired} matches them, so entries with a
+     * limited lifetime do not stay until the cache is full. Expired entries behind a valid one are kept.
+     */
+    public void evictWhile(Predicate<? super V> expired) {
+        K eldest;
+        while ((eldest = insertionOrder.peek()) != null) {
+            V value = entries.get(eldest);
+            if (value != null && !expired.test(value)) {
+                return;
+            }
+            if (!insertionOrder.remove(eldest)) {
+                continue;
+            }
+            if (value != null && !entries.remove(eldest, value) && entries.containsKey(eldest)) {
+                // Replaced concurrently, the new value stays evictable
+                insertionOrder.add(eldest);
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.XmlObjectPool;
+import java.nio.charset.StandardCharsets;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.events.Details;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.saml.common.util.DocumentUtil;
+import org.w3c.dom.Element;
+import org.w3c.dom.UserDataHandler;
+
+/**
+ * Metrics of the BundID login, tagged with the realm name and the identity provider alias only. The XML object pools
+ * are global and only tagged with the pool name.
+ * <p>
+ * Micrometer is provided by the Keycloak distribution. Without Micrometer, or while no registry is added to its global
+ * registry (Keycloak's {@code metrics-enabled=false}), all methods return immediately. {@link MicrometerMetrics} is
+ * only loaded if Micrometer is present.
+ */
+public final class BundIdMetrics {
+    private static final Logger LOG = Logger.getLogger(BundIdMetrics.class);
+
+    public static final String OUTCOME_APPLIED = "applied";
+    public static final String OUTCOME_SKIPPED = "skipped";
+    public static final String OUTCOME_IDP_MISMATCH = "idp_mismatch";
+    public static final String OUTCOME_IDP_UNKNOWN = "idp_unknown";
+
+    static final String UNKNOWN = "unknown";
+    private static final String EXTENSION_SIZE = BundIdMetrics.class.getName() + ".extensionSize";
+    // Keeps the size on the copies handed out by ExtensionTemplate
+    private static final UserDataHandler COPY_ON_CLONE = (operation, key, data, src, dst) -> {
+        if (operation == UserDataHandler.NODE_CLONED && dst != null) {
+            dst.setUserData(key, data, BundIdMetrics.COPY_ON_CLONE);
+        }
+    };
+    private static final boolean MICROMETER_PRESENT = isMicrometerPresent();
+
+    private BundIdMetrics() {}
+
+    private static boolean isMicrometerPresent() {
+        try {
+            Class.forName("io.micrometer.core.instrument.Metrics", false, BundIdMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            LOG.debug("Micrometer not found, BundID metrics are disabled");
+            return false;
+        }
+    }
+
+    static boolean isEnabled() {
+        return MICROMETER_PRESENT && MicrometerMetrics.isPublished();
+    }
+
+    /**
+     * Records the duration of {@code beforeSendingLoginRequest} since {@code startNanos}.
+     *
+     * @param outcome one of the {@code OUTCOME_} constants
+     */
+    public static void recordAuthnRequest(RealmModel realm, String idpAlias, String outcome, long startNanos) {
+        if (isEnabled()) {
+            MicrometerMetrics.recordAuthnRequest(
+                    realmTag(realm), tag(idpAlias), outcome, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Stores the serialized size of an extension built by the preprocessor on the element and its clones, so
+     * {@link #recordExtension} does not have to serialize the extension of every request.
+     */
+    public static void measureExtension(Element extension) {
+        if (extension == null || !isEnabled()) {
+            return;
+        }
+
+        try {
+            int size = DocumentUtil.getNodeAsString(extension).getBytes(StandardCharsets.UTF_8).length;
+            extension.setUserData(EXTENSION_SIZE, size, COPY_ON_CLONE);
+        } catch (Exception e) {
+            LOG.debugf("Cannot measure AuthnRequest extension: %s", e);
+        }
+    }
+
+    /**
+     * Records the number of RequestedAttributes and the size of the extension added to an AuthnRequest.
+     */
+    public static void recordExtension(RealmModel realm, String idpAlias, Element extension) {
+        if (extension == null || !isEnabled()) {
+            return;
+        }
+
+        MicrometerMetrics.recordExtension(
+                realmTag(realm),
+                tag(idpAlias),
+                countRequestedAttributes(extension),
+                extension.getUserData(EXTENSION_SIZE) instanceof Integer size ? size : -1);
+    }
+
+    static int countRequestedAttributes(Element extension) {
+        return extension
+                .getElementsByTagNameNS(AuthenticationRequestCodec.AKDB_NAMESPACE, "RequestedAttribute")
+                .getLength();
+    }
+
+    /**
+     * Records the duration of {@code preprocessFederatedIdentity} of one mapper since {@code startNanos}.
+     *
+     * @param mapperType provider id of the mapper, not the name of the mapper instance
+     */
+    public static void recordMapper(
+            RealmModel realm, BrokeredIdentityContext context, String mapperType, long startNanos) {
+        if (isEnabled()) {
+            MicrometerMetrics.recordMapper(
+                    realmTag(realm), idpTag(context), tag(mapperType), System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Counts an attribute of which only the first of several values was mapped.
+     */
+    public static void countTruncated(BrokeredIdentityContext context) {
+        if (isEnabled()) {
+            MicrometerMetrics.countTruncated(
+                    realmTag(
+                            context.getAuthenticationSession() == null
+                                    ? null
+                                    : context.getAuthenticationSession().getRealm()),
+                    idpTag(context));
+        }
+    }
+
+    /**
+     * Publishes hits, misses, creation time and idle objects of an XML object pool. The meters are bound as long as
+     * Micrometer is present, registries added later pick them up. Binding another pool with the same name replaces
+     * them.
+     */
+    public static void bindPool(String pool, XmlObjectPool<?> objects) {
+        if (MICROMETER_PRESENT) {
+            MicrometerMetrics.bindPool(pool, objects);
+        }
+    }
+
+    /**
+     * Records the number of BundID claims mapped into one token.
+     */
+    public static void recordClaims(UserSessionModel userSession, int claims) {
+        if (isEnabled()) {
+            MicrometerMetrics.recordClaims(
+                    realmTag(userSession.getRealm()), tag(userSession.getNote(Details.IDENTITY_PROVIDER)), claims);
+        }
+    }
+
+    private static String realmTag(RealmModel realm) {
+        return realm == null ? UNKNOWN : tag(realm.getName());
+    }
+
+    private static String idpTag(BrokeredIdentityContext context) {
+        return context.getIdpConfig() == null
+                ? UNKNOWN
+                : tag(context.getIdpConfig().getAlias());
+    }
+
+    private static String tag(String value) {
+        return value == null ? UNKNOWN : value;
+    }
+}
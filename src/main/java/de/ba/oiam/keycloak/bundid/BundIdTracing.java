@@ -0,0 +1,62 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import io.opentelemetry.api.common.AttributeKey;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.tracing.NoopTracingProvider;
+import org.keycloak.tracing.TracingAttributes;
+import org.keycloak.tracing.TracingProvider;
+import org.keycloak.utils.KeycloakSessionUtil;
+
+/**
+ * Spans of the BundID login, created through Keycloak's {@link TracingProvider}.
+ * <p>
+ * With tracing disabled in Keycloak the provider is a no-op. Without a session, e.g. in tests, a no-op provider is
+ * used as well, instead of {@link org.keycloak.tracing.TracingProviderUtil} which logs a warning for every call.
+ * Attributes which are expensive to compute should only be set if {@code span.isRecording()}.
+ */
+public final class BundIdTracing {
+    private static final String PREFIX = TracingAttributes.KC_PREFIX + "bundid.";
+
+    public static final AttributeKey<String> IDP = AttributeKey.stringKey(PREFIX + "idp");
+    public static final AttributeKey<String> OUTCOME = AttributeKey.stringKey(PREFIX + "outcome");
+    public static final AttributeKey<String> MAPPER = AttributeKey.stringKey(PREFIX + "mapper");
+    public static final AttributeKey<String> PHASE = AttributeKey.stringKey(PREFIX + "phase");
+    public static final AttributeKey<String> CLAIM_FORMAT = AttributeKey.stringKey(PREFIX + "claim.format");
+    public static final AttributeKey<Long> MAPPER_COUNT = AttributeKey.longKey(PREFIX + "mapper.count");
+    public static final AttributeKey<Long> REQUESTED_ATTRIBUTE_COUNT =
+            AttributeKey.longKey(PREFIX + "requestedAttribute.count");
+    public static final AttributeKey<Long> ATTRIBUTE_COUNT = AttributeKey.longKey(PREFIX + "attribute.count");
+    public static final AttributeKey<Long> NOTE_COUNT = AttributeKey.longKey(PREFIX + "note.count");
+
+    private static final TracingProvider NOOP = new NoopTracingProvider();
+
+    private BundIdTracing() {}
+
+    public static TracingProvider get(KeycloakSession session) {
+        Object provider = session == null ? null : session.getProvider(TracingProvider.class);
+        return provider instanceof TracingProvider tracing ? tracing : NOOP;
+    }
+
+    /**
+     * @return the provider of the session bound to the current thread
+     */
+    public static TracingProvider current() {
+        return get(KeycloakSessionUtil.getKeycloakSession());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequest;
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.DisplayInformation;
+import de.ba.oiam.keycloak.bundid.extension.model.DisplayInformationValue;
+import de.ba.oiam.keycloak.bundid.extension.model.DisplayInformationVersion;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.keycloak.utils.StringUtil;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Prebuilt {@code akdb:DisplayInformation} elements, which are imported into each request instead of being rebuilt.
+ * <p>
+ * Fragments are keyed by their values, so values configured per realm or client would each get their own fragment.
+ * The fragments are never modified after creation.
+ */
+public class DisplayInformationFragments {
+    private static final String DISPLAY_INFORMATION = "DisplayInformation";
+
+    private final ConcurrentMap<Key, Element> fragments = new ConcurrentHashMap<>();
+
+    /**
+     * @return the fragment or {@code null} if neither value is set
+     */
+    public Element get(String onlineServiceId, String organizationDisplayName) {
+        if (StringUtil.isNullOrEmpty(onlineServiceId) && StringUtil.isNullOrEmpty(organizationDisplayName)) {
+            return null;
+        }
+
+        return fragments.computeIfAbsent(new Key(onlineServiceId, organizationDisplayName), this::build);
+    }
+
+    /**
+     * Appends a copy of {@code fragment} to the given {@code akdb:AuthenticationRequest} element.
+     */
+    public static void appendTo(Element authenticationRequest, Element fragment) {
+        Node copy;
+        // Importing only reads the fragment, but the DOM gives no thread-safety guarantee even for reads
+        synchronized (fragment) {
+            copy = authenticationRequest.getOwnerDocument().importNode(fragment, true);
+        }
+        authenticationRequest.appendChild(copy);
+    }
+
+    public static DisplayInformation create(String onlineServiceId, String organizationDisplayName) {
+        DisplayInformation displayInformation = new DisplayInformation();
+        displayInformation.setVersion(new DisplayInformationVersion());
+        if (!StringUtil.isNullOrEmpty(onlineServiceId)) {
+            DisplayInformationValue value = new DisplayInformationValue();
+            value.setValue(onlineServiceId);
+            displayInformation.getVersion().setOnlineServiceId(value);
+        }
+        if (!StringUtil.isNullOrEmpty(organizationDisplayName)) {
+            DisplayInformationValue value = new DisplayInformationValue();
+            value.setValue(organizationDisplayName);
+            displayInformation.getVersion().setOrganizationDisplayName(value);
+        }
+        return displayInformation;
+    }
+
+    private Element build(Key key) {
+        AuthenticationRequest authenticationRequest = new AuthenticationRequest();
+        authenticationRequest.setDisplayInformation(create(key.onlineServiceId(), key.organizationDisplayName()));
+        Element root = authenticationRequest.toElement();
+
+        for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element element
+                    && AuthenticationRequestCodec.AKDB_NAMESPACE.equals(element.getNamespaceURI())
+                    && DISPLAY_INFORMATION.equals(element.getLocalName())) {
+                return element;
+            }
+        }
+        throw new IllegalStateException("Codec did not write " + DISPLAY_INFORMATION);
+    }
+
+    private record Key(String onlineServiceId, String organizationDisplayName) {}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.w3c.dom.Element;
+
+/**
+ * The {@code akdb:AuthenticationRequest} extension of one identity provider.
+ * <p>
+ * Mappers restricted to client scopes only contribute to the variants built for clients with a matching scope. The
+ * scopes of all contributions are collected once, so a request only intersects them with the scopes of its client and
+ * reuses the variant built for that intersection.
+ */
+public final class ExtensionTemplate {
+    private static final int MAX_VARIANTS = 256;
+
+    /**
+     * Contribution of one mapper to the extension.
+     *
+     * @param clientScopes scopes of which the client needs one, empty if the mapper always contributes
+     */
+    public record Contribution(
+            IdentityProviderMapperModel mapperModel, SamlAuthnRequestUpdater updater, Set<String> clientScopes) {
+
+        public boolean appliesTo(Set<String> scopes) {
+            return clientScopes.isEmpty() || clientScopes.stream().anyMatch(scopes::contains);
+        }
+    }
+
+    private final List<Contribution> contributions;
+    private final Set<String> scopes = new HashSet<>();
+    private final Function<List<Contribution>, Element> writer;
+    private final BoundedCache<Set<String>, Optional<Element>> variantsByScopes = new BoundedCache<>(MAX_VARIANTS);
+
+    public ExtensionTemplate(List<Contribution> contributions, Function<List<Contribution>, Element> writer) {
+        this.contributions = List.copyOf(contributions);
+        this.writer = writer;
+        this.contributions.forEach(contribution -> scopes.addAll(contribution.clientScopes()));
+    }
+
+    /**
+     * @return the contributions of all mappers, including those restricted to client scopes
+     */
+    public List<Contribution> getContributions() {
+        return contributions;
+    }
+
+    /**
+     * Returns a private copy of the extension for a client with {@code clientScopes}, which are only resolved if a
+     * contribution is restricted to scopes. A {@code null} result means there is no extension to add.
+     */
+    public Element get(Supplier<Set<String>> clientScopes) {
+        Set<String> matching = new HashSet<>();
+        if (!scopes.isEmpty()) {
+            for (String scope : clientScopes.get()) {
+                if (scopes.contains(scope)) {
+                    matching.add(scope);
+                }
+            }
+        }
+
+        Optional<Element> variant = variantsByScopes.get(matching);
+        if (variant == null) {
+            variant = Optional.ofNullable(writer.apply(contributions.stream()
+                    .filter(contribution -> contribution.appliesTo(matching))
+                    .toList()));
+            variantsByScopes.put(Set.copyOf(matching), variant);
+        }
+        return variant.map(ExtensionTemplate::copy).orElse(null);
+    }
+
+    private static Element copy(Element element) {
+        // Cloning touches the owner document's bookkeeping, so concurrent clones of one template are serialised
+        synchronized (element) {
+            return (Element) element.cloneNode(true);
+        }
+    }
+}
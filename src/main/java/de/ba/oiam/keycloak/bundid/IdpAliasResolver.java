@@ -0,0 +1,67 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import java.net.URI;
+
+/**
+ * Extracts the identity provider alias from a broker endpoint URL like {@code /realms/x/broker/bundid/endpoint}.
+ * <p>
+ * Equivalent to matching {@code .*&#47;broker/(.+)/endpoint.*}, but scans the path once without backtracking.
+ * Results are cached per raw path, which only differs per realm and identity provider.
+ */
+public class IdpAliasResolver {
+    private static final String BROKER_SEGMENT = "/broker/";
+    private static final String ENDPOINT_SEGMENT = "/endpoint";
+    private static final String NO_ALIAS = "";
+    static final int MAX_CACHE_SIZE = 256;
+
+    private final BoundedCache<String, String> aliasByPath = new BoundedCache<>(MAX_CACHE_SIZE);
+
+    /**
+     * @return the alias or {@code null} if the URL is no broker endpoint
+     */
+    public String resolve(URI assertionConsumerServiceUrl) {
+        String rawPath = assertionConsumerServiceUrl.getRawPath();
+        if (rawPath == null) {
+            return null;
+        }
+
+        String alias = aliasByPath.get(rawPath);
+        if (alias == null) {
+            alias = extractAlias(assertionConsumerServiceUrl.getPath());
+            aliasByPath.put(rawPath, alias == null ? NO_ALIAS : alias);
+        }
+
+        return alias == null || alias.isEmpty() ? null : alias;
+    }
+
+    static String extractAlias(String path) {
+        // The greedy regex picks the last endpoint segment and the last broker segment with a non-empty alias before
+        int end = path.lastIndexOf(ENDPOINT_SEGMENT);
+        if (end < 0) {
+            return null;
+        }
+
+        int start = path.lastIndexOf(BROKER_SEGMENT, end - BROKER_SEGMENT.length() - 1);
+        if (start < 0) {
+            return null;
+        }
+
+        return path.substring(start + BROKER_SEGMENT.length(), end);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import de.ba.oiam.keycloak.bundid.extension.model.XmlObjectPool;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer side of {@link BundIdMetrics}. Must only be used after {@link BundIdMetrics} found Micrometer.
+ */
+final class MicrometerMetrics {
+    private static final String REALM = "realm";
+    private static final String IDP = "idp";
+    private static final String POOL = "pool";
+    private static final String POOL_BORROWS = "bundid.xml.pool.borrows";
+    private static final String POOL_CREATION = "bundid.xml.pool.creation";
+    private static final String POOL_IDLE = "bundid.xml.pool.idle";
+
+    private static final Meter.MeterProvider<Timer> AUTHN_REQUEST = Timer.builder("bundid.authn.request")
+            .description("Duration of adding the BundID extension to an AuthnRequest")
+            .withRegistry(Metrics.globalRegistry);
+    private static final Meter.MeterProvider<DistributionSummary> REQUESTED_ATTRIBUTES = DistributionSummary.builder(
+                    "bundid.authn.request.attributes")
+            .description("RequestedAttributes per AuthnRequest")
+            .withRegistry(Metrics.globalRegistry);
+    private static final Meter.MeterProvider<DistributionSummary> EXTENSION_SIZE = DistributionSummary.builder(
+                    "bundid.authn.request.extension.size")
+            .description("Serialized size of the BundID extension per AuthnRequest")
+            .baseUnit("bytes")
+            .withRegistry(Metrics.globalRegistry);
+    private static final Meter.MeterProvider<Timer> MAPPER = Timer.builder("bundid.mapper.preprocess")
+            .description("Duration of preprocessFederatedIdentity per mapper")
+            .withRegistry(Metrics.globalRegistry);
+    private static final Meter.MeterProvider<Counter> TRUNCATED = Counter.builder("bundid.attribute.truncated")
+            .description("Multi-valued attributes of which only the first value was mapped")
+            .withRegistry(Metrics.globalRegistry);
+    private static final Meter.MeterProvider<DistributionSummary> CLAIMS = DistributionSummary.builder(
+                    "bundid.token.claims")
+            .description("BundID claims per token")
+            .withRegistry(Metrics.globalRegistry);
+
+    private MicrometerMetrics() {}
+
+    static boolean isPublished() {
+        return !Metrics.globalRegistry.getRegistries().isEmpty();
+    }
+
+    static void recordAuthnRequest(String realm, String idp, String outcome, long nanos) {
+        AUTHN_REQUEST.withTags(REALM, realm, IDP, idp, "outcome", outcome).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    static void recordExtension(String realm, String idp, int requestedAttributes, int size) {
+        Tags tags = Tags.of(REALM, realm, IDP, idp);
+        REQUESTED_ATTRIBUTES.withTags(tags).record(requestedAttributes);
+        if (size >= 0) {
+            EXTENSION_SIZE.withTags(tags).record(size);
+        }
+    }
+
+    static void recordMapper(String realm, String idp, String mapper, long nanos) {
+        MAPPER.withTags(REALM, realm, IDP, idp, "mapper", mapper).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    static void countTruncated(String realm, String idp) {
+        TRUNCATED.withTags(REALM, realm, IDP, idp).increment();
+    }
+
+    static void bindPool(String pool, XmlObjectPool<?> objects) {
+        // A new codec replaces the pools of the previous one
+        for (String name : new String[] {POOL_BORROWS, POOL_CREATION, POOL_IDLE}) {
+            Metrics.globalRegistry.find(name).tag(POOL, pool).meters().forEach(Metrics.globalRegistry::remove);
+        }
+
+        FunctionCounter.builder(POOL_BORROWS, objects, XmlObjectPool::getHits)
+                .description("Objects borrowed from an XML object pool")
+                .tags(POOL, pool, "result", "hit")
+                .register(Metrics.globalRegistry);
+        FunctionCounter.builder(POOL_BORROWS, objects, XmlObjectPool::getMisses)
+                .description("Objects borrowed from an XML object pool")
+                .tags(POOL, pool, "result", "miss")
+                .register(Metrics.globalRegistry);
+        FunctionTimer.builder(
+                        POOL_CREATION,
+                        objects,
+                        XmlObjectPool::getMisses,
+                        XmlObjectPool::getCreationNanos,
+                        TimeUnit.NANOSECONDS)
+                .description("Creation of new objects on XML object pool misses")
+                .tags(POOL, pool)
+                .register(Metrics.globalRegistry);
+        Gauge.builder(POOL_IDLE, objects, XmlObjectPool::getIdle)
+                .description("Idle objects in an XML object pool")
+                .tags(POOL, pool)
+                .register(Metrics.globalRegistry);
+    }
+
+    static void recordClaims(String realm, String idp, int claims) {
+        CLAIMS.withTags(REALM, realm, IDP, idp).record(claims);
+    }
+}
@@ -18,11 +18,20 @@ package de.ba.oiam.keycloak.bundid;
 
 import com.google.auto.service.AutoService;
 import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequest;
-import de.ba.oiam.keycloak.bundid.extension.model.DisplayInformation;
-import de.ba.oiam.keycloak.bundid.extension.model.DisplayInformationValue;
-import de.ba.oiam.keycloak.bundid.extension.model.DisplayInformationVersion;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.DomAuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.JaxbAuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.RequestedAttribute;
+import de.ba.oiam.keycloak.bundid.mapper.ExistingUserSession;
+import io.opentelemetry.api.trace.Span;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
 import org.keycloak.authentication.authenticators.util.AcrStore;
@@ -30,30 +39,71 @@ import org.keycloak.broker.provider.IdentityProviderMapper;
 import org.keycloak.dom.saml.v2.protocol.AuthnContextComparisonType;
 import org.keycloak.dom.saml.v2.protocol.AuthnRequestType;
 import org.keycloak.dom.saml.v2.protocol.RequestedAuthnContextType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.IdentityProviderMapperModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
 import org.keycloak.protocol.saml.preprocessor.SamlAuthenticationPreprocessor;
+import org.keycloak.provider.InvalidationHandler;
+import org.keycloak.provider.ProviderEvent;
 import org.keycloak.sessions.AuthenticationSessionModel;
-import org.keycloak.utils.StringUtil;
+import org.keycloak.tracing.TracingProvider;
+import org.keycloak.utils.KeycloakSessionUtil;
+import org.w3c.dom.Element;
 
 @AutoService(SamlAuthenticationPreprocessor.class)
-public class SamlAuthenticationPreprocessorImpl implements SamlAuthenticationPreprocessor {
-    // TODO: Hack to get idp name, should be provided instead...
-    private static final Pattern IDP_NAME_PATTERN = Pattern.compile(".*/broker/(.+)/endpoint.*");
+public class SamlAuthenticationPreprocessorImpl implements SamlAuthenticationPreprocessor, InvalidationHandler {
     private static final String ACTIVE_FOR_IDP_PROPERTY = "activeForIdp";
     private static final String ONLINE_SERVICE_ID = "onlineServiceId";
     private static final String ORGANIZATION_DISPLAY_NAME = "organizationDisplayName";
     private static final String MINIMUM_STORK_LEVEL = "minimumStorkLevel";
+    private static final String EXTENSION_TEMPLATE_TTL = "extensionTemplateTtl";
+    private static final long DEFAULT_EXTENSION_TEMPLATE_TTL = 60;
+    private static final String XML_BINDING = "xmlBinding";
+    private static final String XML_BINDING_JAXB = "jaxb";
+    private static final String JAXB_RUNTIME_CLASS = "org.glassfish.jaxb.runtime.v2.ContextFactory";
+    private static final String XML_INIT = "xmlInit";
+    private static final String XML_INIT_WARMUP = "warmup";
+    private static final String ATTRIBUTE_DELTA = "attributeDelta";
+    private static final int WARM_UP_ITERATIONS = 1000;
 
     public static final String ID = "bundid-protocol";
     private static final Logger LOG = Logger.getLogger(SamlAuthenticationPreprocessorImpl.class);
+    // Marker for mapper types which do not contribute to the request
+    private static final SamlAuthnRequestUpdater NO_UPDATER = (mapperModel, authnRequest) -> {};
 
+    // Updaters not overriding updateRequest(IdentityProviderMapperModel, AuthenticationRequest)
+    private static final ClassValue<Boolean> LEGACY_UPDATERS = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("updateRequest", IdentityProviderMapperModel.class, AuthenticationRequest.class)
+                                .getDeclaringClass()
+                        == SamlAuthnRequestUpdater.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
+    private final IdpAliasResolver idpAliasResolver = new IdpAliasResolver();
     private KeycloakSessionFactory sessionFactory;
+    private final ConcurrentMap<String, SamlAuthnRequestUpdater> updatersByMapperType = new ConcurrentHashMap<>();
     private String activeForIdp = "bundid";
     private String onlineServiceId = "";
     private String organizationDisplayName = "";
 
     private Integer minimumStorkLevel = null;
+    private boolean warmUp = false;
+    private boolean attributeDelta = false;
+    private final DisplayInformationFragments displayInformationFragments = new DisplayInformationFragments();
+    private AuthnRequestExtensionCache extensionCache =
+            new AuthnRequestExtensionCache(TimeUnit.SECONDS.toMillis(DEFAULT_EXTENSION_TEMPLATE_TTL));
 
     public SamlAuthenticationPreprocessorImpl() {}
 
@@ -72,11 +122,100 @@ public class SamlAuthenticationPreprocessorImpl implements SamlAuthenticationPre
         onlineServiceId = config.get(ONLINE_SERVICE_ID);
         organizationDisplayName = config.get(ORGANIZATION_DISPLAY_NAME);
         minimumStorkLevel = config.getInt(MINIMUM_STORK_LEVEL);
+        extensionCache = new AuthnRequestExtensionCache(
+                TimeUnit.SECONDS.toMillis(config.getLong(EXTENSION_TEMPLATE_TTL, DEFAULT_EXTENSION_TEMPLATE_TTL)));
+        AuthenticationRequest.setCodec(createCodec(config.get(XML_BINDING)));
+        warmUp = XML_INIT_WARMUP.equalsIgnoreCase(config.get(XML_INIT));
+        attributeDelta = config.getBoolean(ATTRIBUTE_DELTA, false);
+        displayInformationFragments.get(onlineServiceId, organizationDisplayName);
+    }
+
+    private static AuthenticationRequestCodec createCodec(String xmlBinding) {
+        if (XML_BINDING_JAXB.equalsIgnoreCase(xmlBinding)) {
+            // The JAXBContext is only built on first use, so a missing runtime would otherwise fail the first login
+            if (!isJaxbRuntimeAvailable()) {
+                LOG.warnf(
+                        "JAXB binding configured, but JAXB runtime %s is not available. Using DOM binding",
+                        JAXB_RUNTIME_CLASS);
+                return new DomAuthenticationRequestCodec();
+            }
+            try {
+                JaxbAuthenticationRequestCodec codec = new JaxbAuthenticationRequestCodec();
+                BundIdMetrics.bindPool("marshaller", codec.getMarshallers());
+                BundIdMetrics.bindPool("unmarshaller", codec.getUnmarshallers());
+                BundIdMetrics.bindPool("document_builder", codec.getDocumentBuilders());
+                return codec;
+            } catch (IllegalStateException | LinkageError e) {
+                LOG.warnf("JAXB binding configured, but JAXB is not available. Using DOM binding: %s", e);
+            }
+        }
+        return new DomAuthenticationRequestCodec();
+    }
+
+    private static boolean isJaxbRuntimeAvailable() {
+        try {
+            Class.forName(JAXB_RUNTIME_CLASS, false, JaxbAuthenticationRequestCodec.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
         this.sessionFactory = factory;
+        refreshUpdaters();
+        factory.register(this::onProviderEvent);
+        if (warmUp) {
+            warmUpCodec();
+        }
+    }
+
+    // Moves codec initialisation and JIT compilation of the marshalling path from the first login to startup
+    private void warmUpCodec() {
+        long start = System.nanoTime();
+        AuthenticationRequest dummy = new AuthenticationRequest();
+        RequestedAttribute requestedAttribute = new RequestedAttribute();
+        requestedAttribute.setName("urn:oid:0");
+        dummy.getRequestedAttributes().getRequestedAttributes().add(requestedAttribute);
+        dummy.setDisplayInformation(DisplayInformationFragments.create(onlineServiceId, organizationDisplayName));
+
+        try {
+            AuthenticationRequestCodec codec = AuthenticationRequest.getCodec();
+            for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                codec.read(codec.write(dummy));
+            }
+        } catch (RuntimeException | LinkageError e) {
+            LOG.warnf("Warm-up of XML binding failed. Using DOM binding: %s", e);
+            AuthenticationRequest.setCodec(new DomAuthenticationRequestCodec());
+            return;
+        }
+
+        LOG.infof(
+                "XML binding %s warmed up in %d ms",
+                AuthenticationRequest.getCodec().getClass().getSimpleName(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // Keycloak signals (un)deployed provider factories through invalidation instead of a ProviderEvent
+    @Override
+    public void invalidate(KeycloakSession session, InvalidableObjectType type, Object... params) {
+        if (type == ObjectType.PROVIDER_FACTORY) {
+            refreshUpdaters();
+            extensionCache.clear();
+        }
+    }
+
+    private void onProviderEvent(ProviderEvent event) {
+        if (event instanceof PostMigrationEvent) {
+            refreshUpdaters();
+        } else if (event instanceof RealmModel.IdentityProviderUpdatedEvent updated) {
+            extensionCache.invalidateRealm(updated.getRealm().getId());
+        } else if (event instanceof RealmModel.IdentityProviderRemovedEvent removed) {
+            extensionCache.invalidateRealm(removed.getRealm().getId());
+        } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+            extensionCache.invalidateRealm(removed.getRealm().getId());
+        }
     }
 
     @Override
@@ -87,20 +226,30 @@ public class SamlAuthenticationPreprocessorImpl implements SamlAuthenticationPre
     @Override
     public AuthnRequestType beforeSendingLoginRequest(
             AuthnRequestType authnRequest, AuthenticationSessionModel authSession) {
-        Matcher idpNameMatcher = IDP_NAME_PATTERN.matcher(
-                authnRequest.getAssertionConsumerServiceURL().getPath());
-        if (!idpNameMatcher.matches()) {
+        return BundIdTracing.current()
+                .trace(SamlAuthenticationPreprocessorImpl.class, "beforeSendingLoginRequest", span -> {
+                    return beforeSendingLoginRequest(authnRequest, authSession, span);
+                });
+    }
+
+    private AuthnRequestType beforeSendingLoginRequest(
+            AuthnRequestType authnRequest, AuthenticationSessionModel authSession, Span span) {
+        long start = System.nanoTime();
+        RealmModel realm = authSession.getRealm();
+        String idpName = idpAliasResolver.resolve(authnRequest.getAssertionConsumerServiceURL());
+        if (idpName == null) {
             LOG.warnf(
                     "Cannot find IDP name from consumer service URL '%s'. Preprocessor is skipped.",
                     authnRequest.getAssertionConsumerServiceURL().toString());
+            recordOutcome(span, realm, null, BundIdMetrics.OUTCOME_IDP_UNKNOWN, start);
             return authnRequest;
         }
 
-        String idpName = idpNameMatcher.group(1);
         if (!activeForIdp.equalsIgnoreCase(idpName)) {
             LOG.tracef(
                     "BundID preprocessor only runs for IDP with name '%s'. Got '%s'. Skipping...",
                     activeForIdp, idpName);
+            recordOutcome(span, realm, idpName, BundIdMetrics.OUTCOME_IDP_MISMATCH, start);
             return authnRequest;
         }
 
@@ -113,56 +262,214 @@ public class SamlAuthenticationPreprocessorImpl implements SamlAuthenticationPre
             authnRequest.setRequestedAuthnContext(requestedAuthnContext);
         }
 
-        authSession.getRealm().getIdentityProviderMappersByAliasStream(idpName).forEach(model -> {
-            IdentityProviderMapper idpMapper = (IdentityProviderMapper)
-                    sessionFactory.getProviderFactory(IdentityProviderMapper.class, model.getIdentityProviderMapper());
-            if (idpMapper instanceof SamlAuthnRequestUpdater updater) {
-                updater.updateRequest(model, authnRequest);
+        UserSessionModel existingSession = attributeDelta
+                ? ExistingUserSession.find(KeycloakSessionUtil.getKeycloakSession(), realm, authSession)
+                : null;
+        Element extension;
+        List<ExtensionTemplate.Contribution> contributions;
+        if (existingSession != null) {
+            contributions = getContributions(realm, idpName);
+            extension = writeDeltaExtension(authnRequest, authSession, existingSession, authnLevel, contributions);
+        } else if (extensionCache.isEnabled() && AuthenticationRequest.findExisting(authnRequest) == null) {
+            ExtensionTemplate template = extensionCache.get(
+                    realm.getId(),
+                    idpName,
+                    () -> new ExtensionTemplate(
+                            getContributions(realm, idpName),
+                            templateContributions ->
+                                    writeExtension(new AuthenticationRequest(), templateContributions)));
+            contributions = template.getContributions();
+            extension = template.get(() -> getClientScopes(authSession));
+        } else {
+            contributions = getContributions(realm, idpName);
+            Set<String> clientScopes = getClientScopes(authSession);
+            extension = writeExtension(
+                    AuthenticationRequest.readExistingOrCreate(authnRequest),
+                    contributions.stream()
+                            .filter(contribution -> contribution.appliesTo(clientScopes))
+                            .toList());
+        }
+
+        if (extension != null) {
+            AuthenticationRequest.replaceExtensions(authnRequest, extension);
+            BundIdMetrics.recordExtension(realm, idpName, extension);
+        }
+        updateLegacyRequest(authnRequest, authSession, contributions);
+        if (span.isRecording()) {
+            span.setAttribute(BundIdTracing.MAPPER_COUNT, (long) contributions.size());
+            span.setAttribute(
+                    BundIdTracing.REQUESTED_ATTRIBUTE_COUNT,
+                    extension == null ? 0 : BundIdMetrics.countRequestedAttributes(extension));
+        }
+        recordOutcome(
+                span,
+                realm,
+                idpName,
+                extension != null ? BundIdMetrics.OUTCOME_APPLIED : BundIdMetrics.OUTCOME_SKIPPED,
+                start);
+        return SamlAuthenticationPreprocessor.super.beforeSendingLoginRequest(authnRequest, authSession);
+    }
+
+    private static void recordOutcome(Span span, RealmModel realm, String idpName, String outcome, long start) {
+        BundIdMetrics.recordAuthnRequest(realm, idpName, outcome, start);
+        if (idpName != null) {
+            span.setAttribute(BundIdTracing.IDP, idpName);
+        }
+        span.setAttribute(BundIdTracing.OUTCOME, outcome);
+    }
+
+    // Repeated login into an existing user session: only attributes missing at the requested level are requested
+    private Element writeDeltaExtension(
+            AuthnRequestType authnRequest,
+            AuthenticationSessionModel authSession,
+            UserSessionModel existingSession,
+            AuthnLevel authnLevel,
+            List<ExtensionTemplate.Contribution> allContributions) {
+        Set<String> clientScopes = getClientScopes(authSession);
+        List<ExtensionTemplate.Contribution> contributions = allContributions.stream()
+                .filter(contribution -> contribution.appliesTo(clientScopes))
+                .toList();
+        Set<String> satisfiedOids = new HashSet<>();
+        contributions.forEach(contribution -> satisfiedOids.addAll(
+                contribution.updater().getSatisfiedOids(contribution.mapperModel(), existingSession, authnLevel)));
+        // The mappers carry over the notes of the user session once the returning BundID identity is known
+        ExistingUserSession.markDelta(authSession, existingSession);
+
+        AuthenticationRequest extension = AuthenticationRequest.readExistingOrCreate(authnRequest);
+        updateRequest(extension, contributions);
+        extension
+                .getRequestedAttributes()
+                .getRequestedAttributes()
+                .removeIf(requestedAttribute -> satisfiedOids.contains(requestedAttribute.getName()));
+        LOG.debugf("Skipping %d BundID attributes held by user session at %s", satisfiedOids.size(), authnLevel);
+
+        return writeExtension(extension, List.of());
+    }
+
+    private List<ExtensionTemplate.Contribution> getContributions(RealmModel realm, String idpName) {
+        List<ExtensionTemplate.Contribution> contributions = new ArrayList<>();
+        realm.getIdentityProviderMappersByAliasStream(idpName).forEach(model -> {
+            SamlAuthnRequestUpdater updater = getUpdater(model.getIdentityProviderMapper());
+            if (updater != null) {
+                contributions.add(new ExtensionTemplate.Contribution(model, updater, updater.getClientScopes(model)));
             }
         });
+        return contributions;
+    }
 
-        if (!StringUtil.isNullOrEmpty(onlineServiceId) || !StringUtil.isNullOrEmpty(organizationDisplayName)) {
-            addDisplayInformation(authnRequest);
-        }
+    // All mappers contribute to one in-memory extension which is marshalled only once
+    private Element writeExtension(
+            AuthenticationRequest extension, List<ExtensionTemplate.Contribution> contributions) {
+        updateRequest(extension, contributions);
 
-        return SamlAuthenticationPreprocessor.super.beforeSendingLoginRequest(authnRequest, authSession);
+        Element displayInformation = displayInformationFragments.get(onlineServiceId, organizationDisplayName);
+        Element element;
+        if (displayInformation == null) {
+            element = extension.isEmpty() ? null : extension.toElement();
+        } else {
+            // The prebuilt fragment replaces any DisplayInformation of an existing extension
+            extension.setDisplayInformation(null);
+            element = extension.toElement();
+            DisplayInformationFragments.appendTo(element, displayInformation);
+        }
+        BundIdMetrics.measureExtension(element);
+        return element;
     }
 
-    private AuthnLevel getAuthnLevel(AuthenticationSessionModel authSession) {
-        AcrStore acrStore = new AcrStore(null, authSession);
-        int loa = acrStore.getRequestedLevelOfAuthentication(null);
+    private static void updateRequest(
+            AuthenticationRequest extension, List<ExtensionTemplate.Contribution> contributions) {
+        if (contributions.isEmpty()) {
+            return;
+        }
 
-        if (minimumStorkLevel != null) {
-            loa = Math.max(loa, minimumStorkLevel);
+        TracingProvider tracing = BundIdTracing.current();
+        for (ExtensionTemplate.Contribution contribution : contributions) {
+            if (LEGACY_UPDATERS.get(contribution.updater().getClass())) {
+                continue;
+            }
+            tracing.trace(SamlAuthnRequestUpdater.class, "updateRequest", span -> {
+                span.setAttribute(
+                        BundIdTracing.MAPPER, contribution.mapperModel().getIdentityProviderMapper());
+                contribution.updater().updateRequest(contribution.mapperModel(), extension);
+            });
         }
+    }
 
-        return AuthnLevel.fromLoA(loa);
+    // Updaters which only implement updateRequest(AuthnRequestType) are called with the request itself, every time
+    private static void updateLegacyRequest(
+            AuthnRequestType authnRequest,
+            AuthenticationSessionModel authSession,
+            List<ExtensionTemplate.Contribution> contributions) {
+        Set<String> clientScopes = null;
+        for (ExtensionTemplate.Contribution contribution : contributions) {
+            if (!LEGACY_UPDATERS.get(contribution.updater().getClass())) {
+                continue;
+            }
+            if (clientScopes == null) {
+                clientScopes = getClientScopes(authSession);
+            }
+            if (contribution.appliesTo(clientScopes)) {
+                BundIdTracing.current().trace(SamlAuthnRequestUpdater.class, "updateRequest", span -> {
+                    span.setAttribute(
+                            BundIdTracing.MAPPER, contribution.mapperModel().getIdentityProviderMapper());
+                    contribution.updater().updateRequest(contribution.mapperModel(), authnRequest);
+                });
+            }
+        }
     }
 
-    private void addDisplayInformation(AuthnRequestType authnRequest) {
-        DisplayInformation displayInformation = new DisplayInformation();
-        displayInformation.setVersion(new DisplayInformationVersion());
-        if (!StringUtil.isNullOrEmpty(onlineServiceId)) {
-            DisplayInformationValue value = new DisplayInformationValue();
-            value.setValue(onlineServiceId);
-            displayInformation.getVersion().setOnlineServiceId(value);
+    // Default scopes of the client plus the requested optional ones
+    private static Set<String> getClientScopes(AuthenticationSessionModel authSession) {
+        ClientModel client = authSession.getClient();
+        if (client == null) {
+            return Set.of();
         }
-        if (!StringUtil.isNullOrEmpty(organizationDisplayName)) {
-            DisplayInformationValue value = new DisplayInformationValue();
-            value.setValue(organizationDisplayName);
-            displayInformation.getVersion().setOrganizationDisplayName(value);
+
+        Set<String> scopes = new HashSet<>(client.getClientScopes(true).keySet());
+        String scopeParam = authSession.getClientNote(OIDCLoginProtocol.SCOPE_PARAM);
+        if (scopeParam != null && !scopeParam.isBlank()) {
+            Map<String, ClientScopeModel> optionalScopes = client.getClientScopes(false);
+            for (String scope : scopeParam.trim().split("\\s+")) {
+                if (optionalScopes.containsKey(scope)) {
+                    scopes.add(scope);
+                }
+            }
+        }
+        return scopes;
+    }
+
+    private SamlAuthnRequestUpdater getUpdater(String mapperType) {
+        if (mapperType == null) {
+            return null;
         }
 
-        AuthenticationRequest existingExtension = AuthenticationRequest.readExisting(authnRequest);
+        SamlAuthnRequestUpdater updater = updatersByMapperType.computeIfAbsent(mapperType, this::resolveUpdater);
+        return updater == NO_UPDATER ? null : updater;
+    }
 
-        if (existingExtension != null) {
-            existingExtension.setDisplayInformation(displayInformation);
-            existingExtension.addOrUpdate(authnRequest);
-        } else {
-            AuthenticationRequest authenticationRequest = new AuthenticationRequest();
-            authenticationRequest.setDisplayInformation(displayInformation);
+    private SamlAuthnRequestUpdater resolveUpdater(String mapperType) {
+        return sessionFactory.getProviderFactory(IdentityProviderMapper.class, mapperType)
+                        instanceof SamlAuthnRequestUpdater updater
+                ? updater
+                : NO_UPDATER;
+    }
 
-            authenticationRequest.addOrUpdate(authnRequest);
+    private void refreshUpdaters() {
+        updatersByMapperType.clear();
+        sessionFactory
+                .getProviderFactoriesStream(IdentityProviderMapper.class)
+                .forEach(factory -> updatersByMapperType.put(
+                        factory.getId(), factory instanceof SamlAuthnRequestUpdater updater ? updater : NO_UPDATER));
+    }
+
+    private AuthnLevel getAuthnLevel(AuthenticationSessionModel authSession) {
+        AcrStore acrStore = new AcrStore(null, authSession);
+        int loa = acrStore.getRequestedLevelOfAuthentication(null);
+
+        if (minimumStorkLevel != null) {
+            loa = Math.max(loa, minimumStorkLevel);
         }
+
+        return AuthnLevel.fromLoA(loa);
     }
 }
@@ -16,9 +16,39 @@
 
 package de.ba.oiam.keycloak.bundid;
 
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequest;
+import java.util.Set;
 import org.keycloak.dom.saml.v2.protocol.AuthnRequestType;
 import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.UserSessionModel;
 
 public interface SamlAuthnRequestUpdater {
     void updateRequest(IdentityProviderMapperModel mapperModel, AuthnRequestType authnRequest);
+
+    /**
+     * Adds the contribution of this mapper to the shared extension of an outgoing request. Writing the extension
+     * into the {@link AuthnRequestType} is left to the caller, so it happens once for all mappers.
+     * <p>
+     * Implementations which do not override it are called with
+     * {@link #updateRequest(IdentityProviderMapperModel, AuthnRequestType)} on every request instead, after the
+     * extension has been written. Their changes are not part of a cached extension.
+     */
+    default void updateRequest(IdentityProviderMapperModel mapperModel, AuthenticationRequest authenticationRequest) {}
+
+    /**
+     * Client scopes of which the client of a login needs at least one for this mapper to contribute. An empty set
+     * means the mapper contributes to every request.
+     */
+    default Set<String> getClientScopes(IdentityProviderMapperModel mapperModel) {
+        return Set.of();
+    }
+
+    /**
+     * OIDs requested by this mapper whose values {@code userSession} already holds with at least {@code level}, so a
+     * repeated login does not need to request them again.
+     */
+    default Set<String> getSatisfiedOids(
+            IdentityProviderMapperModel mapperModel, UserSessionModel userSession, AuthnLevel level) {
+        return Set.of();
+    }
 }
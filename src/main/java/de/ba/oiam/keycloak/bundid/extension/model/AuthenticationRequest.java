@@ -16,32 +16,18 @@
 
 package de.ba.oiam.keycloak.bundid.extension.model;
 
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.Marshaller;
-import jakarta.xml.bind.Unmarshaller;
 import jakarta.xml.bind.annotation.*;
 import java.util.ArrayList;
 import java.util.List;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import org.keycloak.dom.saml.v2.protocol.AuthnRequestType;
 import org.keycloak.dom.saml.v2.protocol.ExtensionsType;
-import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 @XmlRootElement(name = "AuthenticationRequest", namespace = "https://www.akdb.de/request/2018/09")
 @XmlAccessorType(XmlAccessType.FIELD)
 public class AuthenticationRequest {
-    private static final JAXBContext JAXB_CONTEXT;
-
-    static {
-        try {
-            JAXB_CONTEXT = JAXBContext.newInstance(AuthenticationRequest.class);
-        } catch (JAXBException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    private static volatile AuthenticationRequestCodec codec = new DomAuthenticationRequestCodec();
 
     @XmlAttribute(name = "Version")
     private String version = "2";
@@ -78,52 +64,58 @@ public class AuthenticationRequest {
         this.displayInformation = displayInformation;
     }
 
+    public static AuthenticationRequestCodec getCodec() {
+        return codec;
+    }
+
+    public static void setCodec(AuthenticationRequestCodec codec) {
+        AuthenticationRequest.codec = codec;
+    }
+
     public static AuthenticationRequest readExisting(AuthnRequestType authnRequest) {
-        try {
-            if (authnRequest.getExtensions() == null) {
-                return null;
-            }
-
-            Unmarshaller unmarshaller = JAXB_CONTEXT.createUnmarshaller();
-
-            return authnRequest.getExtensions().getAny().stream()
-                    .filter(ext -> Node.class.isAssignableFrom(ext.getClass()))
-                    .map(Node.class::cast)
-                    .filter(node -> node.getLocalName().equals("AuthenticationRequest"))
-                    .map(node -> unmarshallUnchecked(unmarshaller, node))
-                    .findFirst()
-                    .orElse(null);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        Node existing = findExisting(authnRequest);
+        return existing != null ? codec.read(existing) : null;
+    }
+
+    public static Node findExisting(AuthnRequestType authnRequest) {
+        if (authnRequest.getExtensions() == null) {
+            return null;
         }
+
+        return authnRequest.getExtensions().getAny().stream()
+                .filter(ext -> Node.class.isAssignableFrom(ext.getClass()))
+                .map(Node.class::cast)
+                .filter(node -> "AuthenticationRequest".equals(node.getLocalName()))
+                .findFirst()
+                .orElse(null);
+    }
+
+    public static AuthenticationRequest readExistingOrCreate(AuthnRequestType authnRequest) {
+        AuthenticationRequest existing = readExisting(authnRequest);
+        return existing != null ? existing : new AuthenticationRequest();
+    }
+
+    public boolean isEmpty() {
+        return requestedAttributes.getRequestedAttributes().isEmpty()
+                && (displayInformation == null || displayInformation.getVersion() == null);
     }
 
     public void addOrUpdate(AuthnRequestType authnRequest) {
-        try {
-            if (authnRequest.getExtensions() == null) {
-                authnRequest.setExtensions(new ExtensionsType());
-            }
-
-            Marshaller marshaller = JAXB_CONTEXT.createMarshaller();
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            Document document = documentBuilder.newDocument();
-            marshaller.marshal(this, document);
-
-            List<Object> allExtensions =
-                    new ArrayList<>(authnRequest.getExtensions().getAny());
-            allExtensions.forEach(ext -> authnRequest.getExtensions().removeExtension(ext));
-            authnRequest.getExtensions().addExtension(document.getDocumentElement());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        replaceExtensions(authnRequest, toElement());
+    }
+
+    public Element toElement() {
+        return codec.write(this);
     }
 
-    private static AuthenticationRequest unmarshallUnchecked(Unmarshaller unmarshaller, Node node) {
-        try {
-            return (AuthenticationRequest) unmarshaller.unmarshal(node);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    public static void replaceExtensions(AuthnRequestType authnRequest, Element extension) {
+        if (authnRequest.getExtensions() == null) {
+            authnRequest.setExtensions(new ExtensionsType());
         }
+
+        List<Object> allExtensions =
+                new ArrayList<>(authnRequest.getExtensions().getAny());
+        allExtensions.forEach(ext -> authnRequest.getExtensions().removeExtension(ext));
+        authnRequest.getExtensions().addExtension(extension);
     }
 }
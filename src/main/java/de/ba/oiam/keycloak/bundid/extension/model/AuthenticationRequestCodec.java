@@ -0,0 +1,32 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.extension.model;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Converts {@link AuthenticationRequest} from and to the DOM representation used in SAML extensions.
+ */
+public interface AuthenticationRequestCodec {
+    String AKDB_NAMESPACE = "https://www.akdb.de/request/2018/09";
+    String CLASSIC_UI_NAMESPACE = "https://www.akdb.de/request/2018/09/classic-ui/v1";
+
+    Element write(AuthenticationRequest authenticationRequest);
+
+    AuthenticationRequest read(Node node);
+}
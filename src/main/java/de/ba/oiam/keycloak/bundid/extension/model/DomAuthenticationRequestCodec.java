@@ -0,0 +1,192 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.extension.model;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Reflection-free codec for the small, fixed akdb schema. Produces the same elements as the JAXB binding.
+ */
+public class DomAuthenticationRequestCodec implements AuthenticationRequestCodec {
+    private static final String AKDB_PREFIX = "akdb:";
+    private static final String CLASSIC_UI_PREFIX = "classic-ui:";
+
+    // DOMImplementation#createDocument is stateless, so one instance serves all threads
+    private final DOMImplementation domImplementation;
+
+    public DomAuthenticationRequestCodec() {
+        DocumentBuilderFactory documentBuilderFactory = SecureXml.documentBuilderFactory();
+        try {
+            synchronized (documentBuilderFactory) {
+                domImplementation = documentBuilderFactory.newDocumentBuilder().getDOMImplementation();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Element write(AuthenticationRequest authenticationRequest) {
+        Document document =
+                domImplementation.createDocument(AKDB_NAMESPACE, AKDB_PREFIX + "AuthenticationRequest", null);
+        Element root = document.getDocumentElement();
+        root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:akdb", AKDB_NAMESPACE);
+        root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:classic-ui", CLASSIC_UI_NAMESPACE);
+        if (authenticationRequest.getVersion() != null) {
+            root.setAttribute("Version", authenticationRequest.getVersion());
+        }
+
+        RequestedAttributes requestedAttributes = authenticationRequest.getRequestedAttributes();
+        if (requestedAttributes != null) {
+            Element requestedAttributesElement =
+                    appendElement(root, AKDB_NAMESPACE, AKDB_PREFIX + "RequestedAttributes");
+            for (RequestedAttribute requestedAttribute : requestedAttributes.getRequestedAttributes()) {
+                Element element =
+                        appendElement(requestedAttributesElement, AKDB_NAMESPACE, AKDB_PREFIX + "RequestedAttribute");
+                if (requestedAttribute.getName() != null) {
+                    element.setAttribute("Name", requestedAttribute.getName());
+                }
+                element.setAttribute("RequiredAttribute", String.valueOf(requestedAttribute.isRequiredAttribute()));
+            }
+        }
+
+        DisplayInformation displayInformation = authenticationRequest.getDisplayInformation();
+        if (displayInformation != null) {
+            writeDisplayInformation(
+                    appendElement(root, AKDB_NAMESPACE, AKDB_PREFIX + "DisplayInformation"), displayInformation);
+        }
+
+        return root;
+    }
+
+    private static void writeDisplayInformation(Element parent, DisplayInformation displayInformation) {
+        DisplayInformationVersion version = displayInformation.getVersion();
+        if (version == null) {
+            return;
+        }
+
+        Element versionElement = appendElement(parent, CLASSIC_UI_NAMESPACE, CLASSIC_UI_PREFIX + "Version");
+        appendValue(versionElement, "OrganizationDisplayName", version.getOrganizationDisplayName());
+        appendValue(versionElement, "OnlineServiceId", version.getOnlineServiceId());
+    }
+
+    private static void appendValue(Element parent, String localName, DisplayInformationValue value) {
+        if (value == null) {
+            return;
+        }
+
+        Element element = appendElement(parent, CLASSIC_UI_NAMESPACE, CLASSIC_UI_PREFIX + localName);
+        if (value.getValue() != null) {
+            element.setTextContent(value.getValue());
+        }
+    }
+
+    private static Element appendElement(Element parent, String namespace, String qualifiedName) {
+        Element element = parent.getOwnerDocument().createElementNS(namespace, qualifiedName);
+        parent.appendChild(element);
+        return element;
+    }
+
+    @Override
+    public AuthenticationRequest read(Node node) {
+        AuthenticationRequest authenticationRequest = new AuthenticationRequest();
+        Element root = (Element) node;
+        // Absent parts keep the defaults of the model, as with JAXB
+        if (root.hasAttribute("Version")) {
+            authenticationRequest.setVersion(root.getAttribute("Version"));
+        }
+
+        for (Element child = firstChildElement(root); child != null; child = nextSiblingElement(child)) {
+            if (isElement(child, AKDB_NAMESPACE, "RequestedAttributes")) {
+                authenticationRequest.setRequestedAttributes(readRequestedAttributes(child));
+            } else if (isElement(child, AKDB_NAMESPACE, "DisplayInformation")) {
+                authenticationRequest.setDisplayInformation(readDisplayInformation(child));
+            }
+        }
+
+        return authenticationRequest;
+    }
+
+    private static RequestedAttributes readRequestedAttributes(Element element) {
+        RequestedAttributes requestedAttributes = new RequestedAttributes();
+        for (Element child = firstChildElement(element); child != null; child = nextSiblingElement(child)) {
+            if (isElement(child, AKDB_NAMESPACE, "RequestedAttribute")) {
+                RequestedAttribute requestedAttribute = new RequestedAttribute();
+                requestedAttribute.setName(child.hasAttribute("Name") ? child.getAttribute("Name") : null);
+                requestedAttribute.setRequiredAttribute(isTrue(child.getAttribute("RequiredAttribute")));
+                requestedAttributes.getRequestedAttributes().add(requestedAttribute);
+            }
+        }
+        return requestedAttributes;
+    }
+
+    private static DisplayInformation readDisplayInformation(Element element) {
+        DisplayInformation displayInformation = new DisplayInformation();
+        for (Element child = firstChildElement(element); child != null; child = nextSiblingElement(child)) {
+            if (isElement(child, CLASSIC_UI_NAMESPACE, "Version")) {
+                DisplayInformationVersion version = new DisplayInformationVersion();
+                for (Element value = firstChildElement(child); value != null; value = nextSiblingElement(value)) {
+                    if (isElement(value, CLASSIC_UI_NAMESPACE, "OrganizationDisplayName")) {
+                        version.setOrganizationDisplayName(readValue(value));
+                    } else if (isElement(value, CLASSIC_UI_NAMESPACE, "OnlineServiceId")) {
+                        version.setOnlineServiceId(readValue(value));
+                    }
+                }
+                displayInformation.setVersion(version);
+            }
+        }
+        return displayInformation;
+    }
+
+    private static DisplayInformationValue readValue(Element element) {
+        DisplayInformationValue value = new DisplayInformationValue();
+        value.setValue(element.getTextContent());
+        return value;
+    }
+
+    // xsd:boolean also allows "1"
+    private static boolean isTrue(String value) {
+        String trimmed = value.trim();
+        return "true".equals(trimmed) || "1".equals(trimmed);
+    }
+
+    private static boolean isElement(Element element, String namespace, String localName) {
+        return namespace.equals(element.getNamespaceURI()) && localName.equals(element.getLocalName());
+    }
+
+    private static Element firstChildElement(Node parent) {
+        Node child = parent.getFirstChild();
+        while (child != null && child.getNodeType() != Node.ELEMENT_NODE) {
+            child = child.getNextSibling();
+        }
+        return (Element) child;
+    }
+
+    private static Element nextSiblingElement(Node node) {
+        Node sibling = node.getNextSibling();
+        while (sibling != null && sibling.getNodeType() != Node.ELEMENT_NODE) {
+            sibling = sibling.getNextSibling();
+        }
+        return (Element) sibling;
+    }
+}
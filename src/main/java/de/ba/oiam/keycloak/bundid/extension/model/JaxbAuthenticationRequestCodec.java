@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.extension.model;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.Unmarshaller;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.jboss.logging.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Fallback codec based on the JAXB annotations of the model. Requires a JAXB runtime on the classpath.
+ * <p>
+ * Marshallers, unmarshallers and document builders are not thread-safe but reusable, so they are pooled. The
+ * {@link JAXBContext} is expensive to build and therefore only created on first use.
+ */
+public class JaxbAuthenticationRequestCodec implements AuthenticationRequestCodec {
+    private static final Logger LOG = Logger.getLogger(JaxbAuthenticationRequestCodec.class);
+    static final int MAX_IDLE = 32;
+
+    private volatile JAXBContext jaxbContext;
+    private final XmlObjectPool<Marshaller> marshallers;
+    private final XmlObjectPool<Unmarshaller> unmarshallers;
+    private final XmlObjectPool<DocumentBuilder> documentBuilders;
+
+    public JaxbAuthenticationRequestCodec() {
+        marshallers = new XmlObjectPool<>(MAX_IDLE, this::createMarshaller, marshaller -> {});
+        unmarshallers = new XmlObjectPool<>(MAX_IDLE, this::createUnmarshaller, unmarshaller -> {});
+        documentBuilders = new XmlObjectPool<>(
+                MAX_IDLE, JaxbAuthenticationRequestCodec::createDocumentBuilder, DocumentBuilder::reset);
+    }
+
+    @Override
+    public Element write(AuthenticationRequest authenticationRequest) {
+        Marshaller marshaller = marshallers.borrow();
+        DocumentBuilder documentBuilder = documentBuilders.borrow();
+        try {
+            Document document = documentBuilder.newDocument();
+            marshaller.marshal(authenticationRequest, document);
+            return document.getDocumentElement();
+        } catch (JAXBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            documentBuilders.release(documentBuilder);
+            marshallers.release(marshaller);
+        }
+    }
+
+    @Override
+    public AuthenticationRequest read(Node node) {
+        Unmarshaller unmarshaller = unmarshallers.borrow();
+        try {
+            return (AuthenticationRequest) unmarshaller.unmarshal(node);
+        } catch (JAXBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            unmarshallers.release(unmarshaller);
+        }
+    }
+
+    /**
+     * @return whether the {@link JAXBContext} has been created, i.e. the codec has been used or warmed up
+     */
+    public boolean isContextCreated() {
+        return jaxbContext != null;
+    }
+
+    public XmlObjectPool<Marshaller> getMarshallers() {
+        return marshallers;
+    }
+
+    public XmlObjectPool<Unmarshaller> getUnmarshallers() {
+        return unmarshallers;
+    }
+
+    public XmlObjectPool<DocumentBuilder> getDocumentBuilders() {
+        return documentBuilders;
+    }
+
+    private JAXBContext getJaxbContext() {
+        JAXBContext context = jaxbContext;
+        if (context == null) {
+            synchronized (this) {
+                context = jaxbContext;
+                if (context == null) {
+                    long start = System.nanoTime();
+                    try {
+                        context = JAXBContext.newInstance(AuthenticationRequest.class);
+                    } catch (JAXBException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    jaxbContext = context;
+                    LOG.infof(
+                            "JAXBContext for AuthenticationRequest created in %d ms",
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+        }
+        return context;
+    }
+
+    private Marshaller createMarshaller() {
+        try {
+            return getJaxbContext().createMarshaller();
+        } catch (JAXBException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Unmarshaller createUnmarshaller() {
+        try {
+            return getJaxbContext().createUnmarshaller();
+        } catch (JAXBException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static DocumentBuilder createDocumentBuilder() {
+        DocumentBuilderFactory documentBuilderFactory = SecureXml.documentBuilderFactory();
+        try {
+            synchronized (documentBuilderFactory) {
+                return documentBuilderFactory.newDocumentBuilder();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.extension.model;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool for XML objects which are expensive to create but not thread-safe, like marshallers and document
+ * builders. Borrowing never blocks: on a miss a new instance is created, and instances returned to a full pool are
+ * dropped. Unlike thread locals this keeps the number of instances bounded with virtual threads.
+ */
+public class XmlObjectPool<T> {
+    private final BlockingQueue<T> idle;
+    private final Supplier<T> factory;
+    private final Consumer<T> reset;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder creationNanos = new LongAdder();
+
+    public XmlObjectPool(int maxIdle, Supplier<T> factory, Consumer<T> reset) {
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+        this.factory = factory;
+        this.reset = reset;
+    }
+
+    public T borrow() {
+        T instance = idle.poll();
+        if (instance != null) {
+            hits.increment();
+            return instance;
+        }
+
+        misses.increment();
+        long start = System.nanoTime();
+        instance = factory.get();
+        creationNanos.add(System.nanoTime() - start);
+        return instance;
+    }
+
+    public void release(T instance) {
+        try {
+            reset.accept(instance);
+        } catch (RuntimeException e) {
+            // Broken instances are not reused
+            return;
+        }
+        idle.offer(instance);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Total time spent creating new instances on a miss. Borrowing never waits, so this is the cost of the misses.
+     */
+    public long getCreationNanos() {
+        return creationNanos.sum();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import de.ba.oiam.keycloak.bundid.AuthnLevel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.saml.SAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Attributes of one SAML assertion, indexed by lowercased name and friendly name.
+ * <p>
+ * The index is built on first access and shared by all mappers of the same broker login. It is kept as an attribute of
+ * the {@link KeycloakSession} and not in {@link BrokeredIdentityContext#getContextData()}, because the context data is
+ * serialized into the authentication session for the first broker login flow.
+ */
+public class AssertionAttributeIndex {
+    private static final String SESSION_ATTRIBUTE = AssertionAttributeIndex.class.getName();
+
+    private final AssertionType assertion;
+    private final List<IndexedAttribute> attributes = new ArrayList<>();
+    private final Map<String, List<IndexedAttribute>> attributesByName = new HashMap<>();
+
+    AssertionAttributeIndex(AssertionType assertion) {
+        this.assertion = assertion;
+        if (assertion == null) {
+            return;
+        }
+
+        assertion.getAttributeStatements().stream()
+                .flatMap(statement -> statement.getAttributes().stream())
+                .map(AttributeStatementType.ASTChoiceType::getAttribute)
+                .filter(Objects::nonNull)
+                .forEach(this::add);
+    }
+
+    /**
+     * @return the index for the assertion of {@code context}, shared within {@code session} if one is given
+     */
+    public static AssertionAttributeIndex of(KeycloakSession session, BrokeredIdentityContext context) {
+        AssertionType assertion = (AssertionType) context.getContextData().get(SAMLEndpoint.SAML_ASSERTION);
+        if (session == null) {
+            return new AssertionAttributeIndex(assertion);
+        }
+
+        AssertionAttributeIndex index = session.getAttribute(SESSION_ATTRIBUTE, AssertionAttributeIndex.class);
+        if (index == null || index.assertion != assertion) {
+            index = new AssertionAttributeIndex(assertion);
+            session.setAttribute(SESSION_ATTRIBUTE, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return the key under which attributes named {@code attributeName} are indexed, ignoring case
+     */
+    public static String matchKey(String attributeName) {
+        return attributeName == null ? null : attributeName.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the values of all attributes whose name or friendly name equals {@code attributeName}, ignoring case
+     */
+    public List<String> getValues(String attributeName) {
+        return getValuesByMatchKey(matchKey(attributeName));
+    }
+
+    /**
+     * Same as {@link #getValues(String)} for a key from {@link #matchKey(String)}.
+     */
+    public List<String> getValuesByMatchKey(String matchKey) {
+        return find(matchKey).flatMap(attribute -> attribute.values().stream()).toList();
+    }
+
+    /**
+     * @return the values of all attributes whose name or friendly name equals {@code attributeName} exactly
+     */
+    public List<String> getValuesMatchingCase(String attributeName) {
+        Stream<IndexedAttribute> candidates =
+                attributeName == null ? attributes.stream() : find(matchKey(attributeName));
+        return candidates
+                .filter(attribute -> Objects.equals(attribute.name(), attributeName)
+                        || Objects.equals(attribute.friendlyName(), attributeName))
+                .flatMap(attribute -> attribute.values().stream())
+                .toList();
+    }
+
+    /**
+     * @return the akdb trust level of the first matching attribute which carries one, ignoring case
+     */
+    public Optional<AuthnLevel> getTrustLevel(String attributeName) {
+        return getTrustLevelByMatchKey(matchKey(attributeName));
+    }
+
+    /**
+     * Same as {@link #getTrustLevel(String)} for a key from {@link #matchKey(String)}.
+     */
+    public Optional<AuthnLevel> getTrustLevelByMatchKey(String matchKey) {
+        return find(matchKey)
+                .map(IndexedAttribute::trustLevel)
+                .filter(Objects::nonNull)
+                .findFirst();
+    }
+
+    /**
+     * @return the lowest akdb trust level of all attributes which carry one
+     */
+    public Optional<AuthnLevel> getLowestTrustLevel() {
+        return attributes.stream()
+                .map(IndexedAttribute::trustLevel)
+                .filter(Objects::nonNull)
+                .min(Comparator.comparingInt(AuthnLevel::getLevel));
+    }
+
+    private Stream<IndexedAttribute> find(String matchKey) {
+        if (matchKey == null) {
+            return Stream.empty();
+        }
+        return attributesByName.getOrDefault(matchKey, Collections.emptyList()).stream();
+    }
+
+    private void add(AttributeType attribute) {
+        List<String> values = attribute.getAttributeValue().stream()
+                .filter(Objects::nonNull)
+                .map(Object::toString)
+                .toList();
+        String trustLevel = attribute.getOtherAttributes().get(BundIdUserSessionAttributeMapper.TRUST_LEVEL_QNAME);
+        IndexedAttribute indexed = new IndexedAttribute(
+                attribute.getName(),
+                attribute.getFriendlyName(),
+                values,
+                trustLevel == null ? null : AuthnLevel.fromAkdbTrustlevel(trustLevel));
+
+        attributes.add(indexed);
+        String name = matchKey(attribute.getName());
+        String friendlyName = matchKey(attribute.getFriendlyName());
+        if (name != null) {
+            attributesByName.computeIfAbsent(name, key -> new ArrayList<>()).add(indexed);
+        }
+        if (friendlyName != null && !friendlyName.equals(name)) {
+            attributesByName
+                    .computeIfAbsent(friendlyName, key -> new ArrayList<>())
+                    .add(indexed);
+        }
+    }
+
+    private record IndexedAttribute(String name, String friendlyName, List<String> values, AuthnLevel trustLevel) {}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import com.google.auto.service.AutoService;
+import de.ba.oiam.keycloak.bundid.mapper.CompiledMapperConfig.MappedAttribute;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.saml.common.util.StringUtil;
+
+/**
+ * {@link BundIdUserSessionAttributeMapper} for a whole table of attributes, which replaces one mapper instance per
+ * attribute.
+ * <p>
+ * Each line of the table is {@code oid;attributeName;sessionKey;required;excludeFromAutomapper}. Only the OID and the
+ * session key are mandatory: the attribute name defaults to the OID, the flags default to {@code false}. Empty lines
+ * and lines starting with {@code #} are ignored.
+ */
+@AutoService(IdentityProviderMapper.class)
+public class BundIdAttributeTableMapper extends BundIdUserSessionAttributeMapper {
+    private static final Logger LOG = Logger.getLogger(BundIdAttributeTableMapper.class);
+
+    public static final String PROVIDER_ID = "saml-bundid-attribute-table-idp-mapper";
+    public static final String ATTRIBUTE_TABLE = "attribute.table";
+
+    private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
+
+    static {
+        ProviderConfigProperty property;
+        property = new ProviderConfigProperty();
+        property.setName(ATTRIBUTE_TABLE);
+        property.setLabel("Attribute Table");
+        property.setHelpText(
+                "One attribute per line: oid;attributeName;sessionKey;required;excludeFromAutomapper. The attribute name defaults to the OID, the flags to false.");
+        property.setType(ProviderConfigProperty.TEXT_TYPE);
+        configProperties.add(property);
+        configProperties.add(createCompactNoteProperty());
+        configProperties.add(createClientScopesProperty());
+    }
+
+    public record Row(
+            String oid, String attributeName, String sessionKey, boolean required, boolean excludeFromAutomapper) {
+
+        public String noteKey() {
+            return (excludeFromAutomapper
+                            ? BUNDID_SESSION_ATTRIBUTE_PREFIX_EXCLUDE_FROM_AUTOMAPPER
+                            : BUNDID_SESSION_ATTRIBUTE_PREFIX)
+                    + sessionKey;
+        }
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return configProperties;
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public String getDisplayCategory() {
+        return "BundID Attribute Table Importer";
+    }
+
+    @Override
+    public String getDisplayType() {
+        return "BundID Attribute Table Importer";
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Import all declared saml attributes which exist in the assertion into session attributes and request them from BundID.";
+    }
+
+    @Override
+    protected List<MappedAttribute> compile(Map<String, String> config) {
+        boolean compact = Boolean.parseBoolean(config.get(SESSION_NOTE_COMPACT));
+        return parse(config.get(ATTRIBUTE_TABLE)).stream()
+                .map(row -> new MappedAttribute(row.oid(), row.required(), row.attributeName(), row.noteKey(), compact))
+                .toList();
+    }
+
+    public static List<Row> parse(String table) {
+        List<Row> rows = new ArrayList<>();
+        if (StringUtil.isNullOrEmpty(table)) {
+            return rows;
+        }
+
+        for (String line : table.split("\\R")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] columns = line.split(";", -1);
+            String oid = column(columns, 0);
+            String sessionKey = column(columns, 2);
+            if (oid.isEmpty() || sessionKey.isEmpty()) {
+                LOG.warnf("Ignoring attribute table row without OID or session key: '%s'", line);
+                continue;
+            }
+
+            String attributeName = column(columns, 1);
+            rows.add(new Row(
+                    oid,
+                    attributeName.isEmpty() ? oid : attributeName,
+                    sessionKey,
+                    Boolean.parseBoolean(column(columns, 3)),
+                    Boolean.parseBoolean(column(columns, 4))));
+        }
+        return rows;
+    }
+
+    private static String column(String[] columns, int index) {
+        return index < columns.length ? columns[index].trim() : "";
+    }
+}
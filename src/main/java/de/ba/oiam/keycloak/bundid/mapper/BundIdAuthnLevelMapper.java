@@ -0,0 +1,158 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import com.google.auto.service.AutoService;
+import de.ba.oiam.keycloak.bundid.AuthnLevel;
+import de.ba.oiam.keycloak.bundid.BundIdMetrics;
+import java.util.*;
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.authenticators.util.AcrStore;
+import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.broker.saml.SAMLEndpoint;
+import org.keycloak.broker.saml.SAMLIdentityProviderFactory;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AuthnContextClassRefType;
+import org.keycloak.dom.saml.v2.assertion.AuthnContextType;
+import org.keycloak.dom.saml.v2.assertion.AuthnStatementType;
+import org.keycloak.models.*;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * Records the level BundID actually authenticated in Keycloak's {@link AcrStore}, so a later step-up to the same or
+ * a lower level is satisfied without another BundID login.
+ * <p>
+ * The level is taken from the {@code AuthnContextClassRef} of the assertion. Without one, the lowest akdb trust level
+ * of the returned attributes is used.
+ */
+@AutoService(IdentityProviderMapper.class)
+public class BundIdAuthnLevelMapper extends AbstractIdentityProviderMapper {
+    private static final Logger LOG = Logger.getLogger(BundIdAuthnLevelMapper.class);
+
+    public static final String[] COMPATIBLE_PROVIDERS = {SAMLIdentityProviderFactory.PROVIDER_ID};
+    public static final String PROVIDER_ID = "saml-bundid-authn-level-idp-mapper";
+
+    private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
+    private static final Set<IdentityProviderSyncMode> IDENTITY_PROVIDER_SYNC_MODES =
+            new HashSet<>(Arrays.asList(IdentityProviderSyncMode.values()));
+
+    @Override
+    public boolean supportsSyncMode(IdentityProviderSyncMode syncMode) {
+        return IDENTITY_PROVIDER_SYNC_MODES.contains(syncMode);
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return configProperties;
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public String[] getCompatibleProviders() {
+        return COMPATIBLE_PROVIDERS;
+    }
+
+    @Override
+    public String getDisplayCategory() {
+        return "BundID Level of Authentication";
+    }
+
+    @Override
+    public String getDisplayType() {
+        return "BundID Level of Authentication";
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Record the STORK level authenticated by BundID as level of authentication of the login.";
+    }
+
+    @Override
+    public void preprocessFederatedIdentity(
+            KeycloakSession session,
+            RealmModel realm,
+            IdentityProviderMapperModel mapperModel,
+            BrokeredIdentityContext context) {
+        long start = System.nanoTime();
+        setLevelAuthenticated(session, context);
+        BundIdMetrics.recordMapper(realm, context, getId(), start);
+    }
+
+    @Override
+    public void importNewUser(
+            KeycloakSession session,
+            RealmModel realm,
+            UserModel user,
+            IdentityProviderMapperModel mapperModel,
+            BrokeredIdentityContext context) {
+        setLevelAuthenticated(session, context);
+    }
+
+    @Override
+    public void updateBrokeredUser(
+            KeycloakSession session,
+            RealmModel realm,
+            UserModel user,
+            IdentityProviderMapperModel mapperModel,
+            BrokeredIdentityContext context) {
+        setLevelAuthenticated(session, context);
+    }
+
+    private void setLevelAuthenticated(KeycloakSession session, BrokeredIdentityContext context) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        AuthnLevel level = getAuthenticatedLevel(session, context);
+        if (authSession == null || level == null) {
+            return;
+        }
+
+        AcrStore acrStore = new AcrStore(session, authSession);
+        if (acrStore.getLevelOfAuthenticationFromCurrentAuthentication() < level.getLevel()) {
+            LOG.debugf("BundID authenticated %s", level);
+            acrStore.setLevelAuthenticated(level.getLevel());
+        }
+    }
+
+    private static AuthnLevel getAuthenticatedLevel(KeycloakSession session, BrokeredIdentityContext context) {
+        AssertionType assertion = (AssertionType) context.getContextData().get(SAMLEndpoint.SAML_ASSERTION);
+        if (assertion == null) {
+            return null;
+        }
+
+        return assertion.getStatements().stream()
+                .filter(AuthnStatementType.class::isInstance)
+                .map(statement -> ((AuthnStatementType) statement).getAuthnContext())
+                .filter(Objects::nonNull)
+                .map(AuthnContextType::getSequence)
+                .filter(Objects::nonNull)
+                .map(AuthnContextType.AuthnContextTypeSequence::getClassRef)
+                .filter(Objects::nonNull)
+                .map(AuthnContextClassRefType::getValue)
+                .filter(Objects::nonNull)
+                .map(classRef -> AuthnLevel.fromFullname(classRef.toString()))
+                .filter(Objects::nonNull)
+                .findFirst()
+                .or(() -> AssertionAttributeIndex.of(session, context).getLowestTrustLevel())
+                .orElse(null);
+    }
+}
@@ -16,17 +16,24 @@
 
 package de.ba.oiam.keycloak.bundid.mapper;
 
-import static org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME;
-
 import com.google.auto.service.AutoService;
+import de.ba.oiam.keycloak.bundid.AuthnLevel;
+import de.ba.oiam.keycloak.bundid.BundIdMetrics;
+import de.ba.oiam.keycloak.bundid.BundIdTracing;
+import io.opentelemetry.api.trace.Span;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 import org.keycloak.models.*;
 import org.keycloak.protocol.ProtocolMapper;
 import org.keycloak.protocol.oidc.mappers.*;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.representations.AccessTokenResponse;
 import org.keycloak.representations.IDToken;
+import org.keycloak.saml.common.util.StringUtil;
 
 @AutoService(ProtocolMapper.class)
 public class BundIdProtocolMapper extends AbstractOIDCProtocolMapper
@@ -34,11 +41,50 @@ public class BundIdProtocolMapper extends AbstractOIDCProtocolMapper
 
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
 
+    public static final String PROVIDER_ID = "oidc-bundid-sessionnote-mapper";
+
+    public static final String CLAIM_FORMAT = "claim.format";
+    public static final String CLAIM_FORMAT_FLAT = "flat";
+    public static final String CLAIM_FORMAT_NESTED = "nested";
+    public static final String DEFAULT_NESTED_CLAIM_NAME = "bundid";
+    public static final String MANIFEST_ONLY = "manifest.only";
+
+    static final String NESTED_VALUE = "value";
+    static final String NESTED_LEVEL = "level";
+
     static {
         OIDCAttributeMapperHelper.addAttributeConfig(configProperties, UserSessionNoteMapper.class);
+
+        ProviderConfigProperty claimFormat = new ProviderConfigProperty();
+        claimFormat.setName(CLAIM_FORMAT);
+        claimFormat.setLabel("Claim format");
+        claimFormat.setHelpText("'" + CLAIM_FORMAT_FLAT + "' maps every BundID note to its own claim. '"
+                + CLAIM_FORMAT_NESTED + "' maps all notes to one object claim (Token Claim Name, default '"
+                + DEFAULT_NESTED_CLAIM_NAME + "') with the value and the numeric trust level per attribute.");
+        claimFormat.setType(ProviderConfigProperty.LIST_TYPE);
+        claimFormat.setOptions(List.of(CLAIM_FORMAT_FLAT, CLAIM_FORMAT_NESTED));
+        claimFormat.setDefaultValue(CLAIM_FORMAT_FLAT);
+        configProperties.add(claimFormat);
+
+        ProviderConfigProperty manifestOnly = new ProviderConfigProperty();
+        manifestOnly.setName(MANIFEST_ONLY);
+        manifestOnly.setLabel("Read manifest only");
+        manifestOnly.setHelpText("Only map the BundID notes listed in the note manifest written by the BundID identity "
+                + "provider mappers, and reuse the claims per user session until the manifest changes. BundID notes "
+                + "written by other means, like the hardcoded session attribute mapper or custom authenticators, are "
+                + "then not mapped. If disabled, all user session notes are scanned for every token.");
+        manifestOnly.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        manifestOnly.setDefaultValue(Boolean.FALSE.toString());
+        configProperties.add(manifestOnly);
     }
 
-    public static final String PROVIDER_ID = "oidc-bundid-sessionnote-mapper";
+    // The factory instance is shared by all token requests, the models are never modified after creation
+    private final ClaimMapperModels claimModels = new ClaimMapperModels(false);
+    private final ClaimMapperModels nestedClaimModels = new ClaimMapperModels(true);
+    private final SessionClaimCache<Map<String, String>> sessionClaims =
+            new SessionClaimCache<>(userSession -> Collections.unmodifiableMap(getClaims(userSession, true)));
+    private final SessionClaimCache<Map<String, Map<String, Object>>> nestedSessionClaims =
+            new SessionClaimCache<>(userSession -> toNestedClaim(getClaims(userSession, true)));
 
     public List<ProviderConfigProperty> getConfigProperties() {
         return configProperties;
@@ -65,19 +111,7 @@ public class BundIdProtocolMapper extends AbstractOIDCProtocolMapper
     }
 
     protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession) {
-        userSession.getNotes().entrySet().stream()
-                .filter(e -> e.getKey().startsWith(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX))
-                .forEach(e -> {
-                    mappingModel
-                            .getConfig()
-                            .put(
-                                    TOKEN_CLAIM_NAME,
-                                    e.getKey()
-                                            .replace(
-                                                    BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX,
-                                                    ""));
-                    OIDCAttributeMapperHelper.mapClaim(token, mappingModel, e.getValue());
-                });
+        mapClaims(mappingModel, userSession, (model, value) -> OIDCAttributeMapperHelper.mapClaim(token, model, value));
     }
 
     @Override
@@ -87,18 +121,105 @@ public class BundIdProtocolMapper extends AbstractOIDCProtocolMapper
             UserSessionModel userSession,
             KeycloakSession keycloakSession,
             ClientSessionContext clientSessionCtx) {
-        userSession.getNotes().entrySet().stream()
-                .filter(e -> e.getKey().startsWith(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX))
-                .forEach(e -> {
-                    mappingModel
-                            .getConfig()
-                            .put(
-                                    TOKEN_CLAIM_NAME,
-                                    e.getKey()
-                                            .replace(
-                                                    BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX,
-                                                    ""));
-                    OIDCAttributeMapperHelper.mapClaim(accessTokenResponse, mappingModel, e.getValue());
-                });
+        mapClaims(
+                mappingModel,
+                userSession,
+                (model, value) -> OIDCAttributeMapperHelper.mapClaim(accessTokenResponse, model, value));
+    }
+
+    private void mapClaims(
+            ProtocolMapperModel mappingModel,
+            UserSessionModel userSession,
+            BiConsumer<ProtocolMapperModel, Object> claimMapper) {
+        BundIdTracing.current().trace(BundIdProtocolMapper.class, "setClaim", span -> {
+            int claims = mapClaims(mappingModel, userSession, claimMapper, span);
+            span.setAttribute(BundIdTracing.NOTE_COUNT, (long) claims);
+            BundIdMetrics.recordClaims(userSession, claims);
+        });
+    }
+
+    // Returns the number of mapped BundID claims, for the nested format the attributes in the object
+    private int mapClaims(
+            ProtocolMapperModel mappingModel,
+            UserSessionModel userSession,
+            BiConsumer<ProtocolMapperModel, Object> claimMapper,
+            Span span) {
+        // Without the manifest, notes may change without a new revision, so nothing is cached
+        boolean manifestOnly = Boolean.parseBoolean(mappingModel.getConfig().get(MANIFEST_ONLY));
+        if (!CLAIM_FORMAT_NESTED.equals(mappingModel.getConfig().get(CLAIM_FORMAT))) {
+            span.setAttribute(BundIdTracing.CLAIM_FORMAT, CLAIM_FORMAT_FLAT);
+            Map<String, String> claims = manifestOnly ? sessionClaims.get(userSession) : getClaims(userSession, false);
+            claims.forEach((claimName, value) -> claimMapper.accept(claimModels.get(mappingModel, claimName), value));
+            return claims.size();
+        }
+
+        span.setAttribute(BundIdTracing.CLAIM_FORMAT, CLAIM_FORMAT_NESTED);
+        Map<String, Map<String, Object>> attributes =
+                manifestOnly ? nestedSessionClaims.get(userSession) : toNestedClaim(getClaims(userSession, false));
+        if (!attributes.isEmpty()) {
+            String claimName = mappingModel.getConfig().get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME);
+            claimMapper.accept(
+                    nestedClaimModels.get(
+                            mappingModel, StringUtil.isNullOrEmpty(claimName) ? DEFAULT_NESTED_CLAIM_NAME : claimName),
+                    // Other mappers may add to the claim object
+                    new LinkedHashMap<>(attributes));
+        }
+        return attributes.size();
+    }
+
+    // Attribute name to value and numeric trust level
+    private static Map<String, Map<String, Object>> toNestedClaim(Map<String, String> claims) {
+        Map<String, Map<String, Object>> attributes = new LinkedHashMap<>();
+        claims.forEach((claimName, value) -> {
+            String attributeName = claimName;
+            String key = NESTED_VALUE;
+            Object nestedValue = value;
+            if (claimName.endsWith(BundIdUserSessionAttributeMapper.VERIFIED_LEVEL_SUFFIX)) {
+                attributeName = claimName.substring(
+                        0, claimName.length() - BundIdUserSessionAttributeMapper.VERIFIED_LEVEL_SUFFIX.length());
+                key = NESTED_LEVEL;
+                AuthnLevel level = AuthnLevel.fromFullname(value);
+                nestedValue = level == null ? value : level.getLevel();
+            }
+            attributes
+                    .computeIfAbsent(attributeName, name -> new LinkedHashMap<>())
+                    .put(key, nestedValue);
+        });
+
+        attributes.replaceAll((name, attribute) -> Collections.unmodifiableMap(attribute));
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    // Claim name to value for the separate BundID notes and the compact note
+    private static Map<String, String> getClaims(UserSessionModel userSession, boolean manifestOnly) {
+        Map<String, String> claims = new LinkedHashMap<>();
+        String manifest = manifestOnly ? userSession.getNote(SessionNoteManifest.NOTE) : null;
+        if (manifest != null) {
+            for (String name : SessionNoteManifest.parse(manifest)) {
+                String value =
+                        userSession.getNote(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX + name);
+                if (value != null) {
+                    claims.put(name, value);
+                }
+            }
+        } else {
+            // Default, and sessions created before the manifest was introduced
+            userSession.getNotes().entrySet().stream()
+                    .filter(e ->
+                            e.getKey().startsWith(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX))
+                    .forEach(e -> claims.put(
+                            e.getKey().replace(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX, ""),
+                            e.getValue()));
+        }
+
+        CompactSessionNote.decode(userSession.getNote(CompactSessionNote.NOTE)).forEach((name, attribute) -> {
+            claims.put(name, attribute.value());
+            if (attribute.level() != null) {
+                claims.put(
+                        name + BundIdUserSessionAttributeMapper.VERIFIED_LEVEL_SUFFIX,
+                        attribute.level().getFullname());
+            }
+        });
+        return claims;
     }
 }
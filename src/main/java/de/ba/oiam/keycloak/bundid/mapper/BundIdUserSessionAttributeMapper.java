@@ -18,22 +18,19 @@ package de.ba.oiam.keycloak.bundid.mapper;
 
 import com.google.auto.service.AutoService;
 import de.ba.oiam.keycloak.bundid.AuthnLevel;
+import de.ba.oiam.keycloak.bundid.BundIdMetrics;
+import de.ba.oiam.keycloak.bundid.BundIdTracing;
 import de.ba.oiam.keycloak.bundid.SamlAuthnRequestUpdater;
 import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequest;
 import de.ba.oiam.keycloak.bundid.extension.model.RequestedAttribute;
+import de.ba.oiam.keycloak.bundid.mapper.CompiledMapperConfig.MappedAttribute;
 import java.util.*;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 import javax.xml.namespace.QName;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.provider.IdentityProviderMapper;
-import org.keycloak.broker.saml.SAMLEndpoint;
 import org.keycloak.broker.saml.SAMLIdentityProviderFactory;
-import org.keycloak.dom.saml.v2.assertion.AssertionType;
-import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
-import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.dom.saml.v2.protocol.AuthnRequestType;
 import org.keycloak.models.*;
 import org.keycloak.provider.ProviderConfigProperty;
@@ -58,6 +55,8 @@ public class BundIdUserSessionAttributeMapper extends AbstractIdentityProviderMa
     public static final String SESSION_ATTRIBUTE_PREFIX = "session.attribute.prefix";
     public static final String SESSION_ATTRIBUTE = "session.attribute";
     public static final String SESSION_ATTRIBUTE_EXCLUDE_FROM_AUTOMAPPER = "session.attribute.excludeFromAutomapper";
+    public static final String SESSION_NOTE_COMPACT = "session.note.compact";
+    public static final String CLIENT_SCOPES = "client.scopes";
     private static final Set<IdentityProviderSyncMode> IDENTITY_PROVIDER_SYNC_MODES =
             new HashSet<>(Arrays.asList(IdentityProviderSyncMode.values()));
 
@@ -129,10 +128,36 @@ public class BundIdUserSessionAttributeMapper extends AbstractIdentityProviderMa
         property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
         property.setDefaultValue(false);
         configProperties.add(property);
+        configProperties.add(createCompactNoteProperty());
+        configProperties.add(createClientScopesProperty());
+    }
+
+    protected static ProviderConfigProperty createCompactNoteProperty() {
+        ProviderConfigProperty property = new ProviderConfigProperty();
+        property.setName(SESSION_NOTE_COMPACT);
+        property.setLabel("Compact session storage");
+        property.setHelpText(
+                "Store automapped attributes and their trust levels together in one compact user session note instead of two notes per attribute.");
+        property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        property.setDefaultValue(false);
+        return property;
+    }
+
+    protected static ProviderConfigProperty createClientScopesProperty() {
+        ProviderConfigProperty property = new ProviderConfigProperty();
+        property.setName(CLIENT_SCOPES);
+        property.setLabel("Client scopes");
+        property.setHelpText(
+                "Comma separated client scopes. If set, the attributes are only requested from BundID if the client of the login has one of these scopes.");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        return property;
     }
 
     public static final String PROVIDER_ID = "saml-bundid-session-attribute-idp-mapper";
 
+    // Created on first use, so the constructor does not leak this to the cache
+    private volatile CompiledMapperConfig.Cache compiledConfigs;
+
     @Override
     public boolean supportsSyncMode(IdentityProviderSyncMode syncMode) {
         return IDENTITY_PROVIDER_SYNC_MODES.contains(syncMode);
@@ -169,7 +194,9 @@ public class BundIdUserSessionAttributeMapper extends AbstractIdentityProviderMa
             RealmModel realm,
             IdentityProviderMapperModel mapperModel,
             BrokeredIdentityContext context) {
-        setSessionAttribute(session, mapperModel, context);
+        long start = System.nanoTime();
+        setSessionAttribute(session, realm, mapperModel, context, "PREPROCESS");
+        BundIdMetrics.recordMapper(realm, context, getId(), start);
     }
 
     @Override
@@ -179,7 +206,7 @@ public class BundIdUserSessionAttributeMapper extends AbstractIdentityProviderMa
             UserModel user,
             IdentityProviderMapperModel mapperModel,
             BrokeredIdentityContext context) {
-        setSessionAttribute(session, mapperModel, context);
+        setSessionAttribute(session, realm, mapperModel, context, "UPDATE");
     }
 
     @Override
@@ -189,52 +216,123 @@ public class BundIdUserSessionAttributeMapper extends AbstractIdentityProviderMa
             UserModel user,
             IdentityProviderMapperModel mapperModel,
             BrokeredIdentityContext context) {
-        setSessionAttribute(session, mapperModel, context);
+        setSessionAttribute(session, realm, mapperModel, context, "IMPORT");
     }
 
     private void setSessionAttribute(
+            KeycloakSession session,
+            RealmModel realm,
+            IdentityProviderMapperModel mapperModel,
+            BrokeredIdentityContext context,
+            String phase) {
+        BundIdTracing.get(session).trace(getClass(), "updateSession", span -> {
+            span.setAttribute(BundIdTracing.MAPPER, getId());
+            span.setAttribute(BundIdTracing.PHASE, phase);
+            ExistingUserSession.carryOverNotes(session, realm, context);
+            SessionNoteBuffer buffer = SessionNoteBuffer.begin(session, context.getAuthenticationSession());
+            try {
+                span.setAttribute(BundIdTracing.ATTRIBUTE_COUNT, setSessionAttribute(session, mapperModel, context));
+            } finally {
+                if (buffer != null) {
+                    buffer.finish(session);
+                }
+            }
+        });
+    }
+
+    // Returns the number of mapped attributes
+    private long setSessionAttribute(
             KeycloakSession session, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
-        String attribute = mapperModel.getConfig().get(SESSION_ATTRIBUTE);
-        if (StringUtil.isNullOrEmpty(attribute)) {
+        AssertionAttributeIndex index = null;
+        long mapped = 0;
+        for (MappedAttribute attribute : compiledConfigs().get(mapperModel).getAttributes()) {
+            if (attribute.noteKey() == null) {
+                continue;
+            }
+            if (index == null) {
+                index = AssertionAttributeIndex.of(session, context);
+            }
+            setSessionAttribute(session, context, index, attribute);
+            mapped++;
+        }
+        return mapped;
+    }
+
+    protected void setSessionAttribute(
+            KeycloakSession session,
+            BrokeredIdentityContext context,
+            AssertionAttributeIndex index,
+            MappedAttribute attribute) {
+        List<String> attributeValuesInContext = index.getValuesByMatchKey(attribute.matchKey());
+        if (attributeValuesInContext.isEmpty()) {
             return;
         }
+        if (attributeValuesInContext.size() > 1) {
+            LOG.warnf(
+                    "Attribute '%s' has more than one value. Discarding all but the first.", attribute.attributeName());
+            BundIdMetrics.countTruncated(context);
+        }
 
-        boolean excludeFromAutomapper = Boolean.parseBoolean(
-                mapperModel.getConfig().getOrDefault(SESSION_ATTRIBUTE_EXCLUDE_FROM_AUTOMAPPER, "false"));
-        String attributeName = getAttributeNameFromMapperModel(mapperModel);
+        String key = attribute.noteKey();
+        if (attribute.compact()) {
+            SessionNoteBuffer buffer = SessionNoteBuffer.find(session, context.getAuthenticationSession());
+            if (buffer != null) {
+                buffer.storeCompact(key);
+            }
+        }
+        updateSession(session, context, key, attributeValuesInContext.get(0), false);
+        index.getTrustLevelByMatchKey(attribute.matchKey())
+                .map(AuthnLevel::getFullname)
+                .ifPresent(stork -> updateSession(session, context.getAuthenticationSession(), key, stork, true));
+    }
 
-        List<String> attributeValuesInContext = findAttributeValuesInContext(attributeName, context);
-        if (attributeValuesInContext != null && !attributeValuesInContext.isEmpty()) {
-            if (attributeValuesInContext.size() > 1) {
-                LOG.warnf("Attribute '%s' has more than one value. Discarding all but the first.", attributeName);
+    /**
+     * Compiles the config of one mapper instance. Called once per config change of a mapper, not per login.
+     */
+    private CompiledMapperConfig.Cache compiledConfigs() {
+        CompiledMapperConfig.Cache cache = compiledConfigs;
+        if (cache == null) {
+            synchronized (this) {
+                cache = compiledConfigs;
+                if (cache == null) {
+                    cache = new CompiledMapperConfig.Cache(this::compile);
+                    compiledConfigs = cache;
+                }
             }
+        }
+        return cache;
+    }
 
-            String prefix = mapperModel
-                    .getConfig()
-                    .getOrDefault(
-                            SESSION_ATTRIBUTE_PREFIX,
-                            excludeFromAutomapper
-                                    ? BUNDID_SESSION_ATTRIBUTE_PREFIX_EXCLUDE_FROM_AUTOMAPPER
-                                    : BUNDID_SESSION_ATTRIBUTE_PREFIX);
-            updateSession(
-                    session,
-                    context,
-                    prefix + attribute,
-                    attributeValuesInContext.get(0),
-                    false);
-            findStorkValueForAttribute(attributeName, context)
-                    .ifPresent(stork -> updateSession(
-                            session, context.getAuthenticationSession(), prefix + attribute, stork, true));
+    protected List<MappedAttribute> compile(Map<String, String> config) {
+        String sessionAttribute = config.get(SESSION_ATTRIBUTE);
+        String noteKey = null;
+        if (!StringUtil.isNullOrEmpty(sessionAttribute)) {
+            boolean excludeFromAutomapper =
+                    Boolean.parseBoolean(config.getOrDefault(SESSION_ATTRIBUTE_EXCLUDE_FROM_AUTOMAPPER, "false"));
+            String prefix = config.getOrDefault(
+                    SESSION_ATTRIBUTE_PREFIX,
+                    excludeFromAutomapper
+                            ? BUNDID_SESSION_ATTRIBUTE_PREFIX_EXCLUDE_FROM_AUTOMAPPER
+                            : BUNDID_SESSION_ATTRIBUTE_PREFIX);
+            noteKey = prefix + sessionAttribute;
         }
+
+        String attributeName = config.get(ATTRIBUTE_NAME);
+        if (attributeName == null) {
+            attributeName = config.get(ATTRIBUTE_FRIENDLY_NAME);
+        }
+
+        return List.of(new MappedAttribute(
+                config.get(ATTRIBUTE_OID),
+                Boolean.parseBoolean(config.get(ATTRIBUTE_REQUIRED)),
+                attributeName,
+                noteKey,
+                Boolean.parseBoolean(config.get(SESSION_NOTE_COMPACT))));
     }
 
     // Extension point for custom behavior
     protected void updateSession(
-            KeycloakSession session,
-            BrokeredIdentityContext context,
-            String key,
-            String value,
-            boolean isStorkLevel) {
+            KeycloakSession session, BrokeredIdentityContext context, String key, String value, boolean isStorkLevel) {
         updateSession(session, context.getAuthenticationSession(), key, value, isStorkLevel);
     }
 
@@ -245,93 +343,76 @@ public class BundIdUserSessionAttributeMapper extends AbstractIdentityProviderMa
             String key,
             String value,
             boolean isStorkLevel) {
-        if (isStorkLevel) {
-            authSession.setUserSessionNote(key + VERIFIED_LEVEL_SUFFIX, value);
-        } else {
-            authSession.setUserSessionNote(key, value);
-        }
-    }
-
-    private String getAttributeNameFromMapperModel(IdentityProviderMapperModel mapperModel) {
-        String attributeName = mapperModel.getConfig().get(ATTRIBUTE_NAME);
-        if (attributeName == null) {
-            attributeName = mapperModel.getConfig().get(ATTRIBUTE_FRIENDLY_NAME);
-        }
-        return attributeName;
+        String noteKey = isStorkLevel ? key + VERIFIED_LEVEL_SUFFIX : key;
+        SessionNoteBuffer.write(session, authSession, noteKey, value);
     }
 
-    private static Predicate<AttributeStatementType.ASTChoiceType> elementWithTrustLevel() {
-        return attributeType ->
-                attributeType.getAttribute().getOtherAttributes().containsKey(TRUST_LEVEL_QNAME);
-    }
-
-    private static Predicate<AttributeStatementType.ASTChoiceType> elementWith(String attributeName) {
-        return attributeType -> {
-            AttributeType attribute = attributeType.getAttribute();
-            String aName = attribute.getName();
-            String aFriendlyName = attribute.getFriendlyName();
-            return ((aName != null && aName.equalsIgnoreCase(attributeName))
-                    || (aFriendlyName != null && aFriendlyName.equalsIgnoreCase(attributeName)));
-        };
+    @Override
+    public String getHelpText() {
+        return "Import declared saml attribute if it exists in assertion into the specified session attribute.";
     }
 
-    private Optional<String> findStorkValueForAttribute(String attributeName, BrokeredIdentityContext context) {
-        AssertionType assertion = (AssertionType) context.getContextData().get(SAMLEndpoint.SAML_ASSERTION);
-
-        return assertion.getAttributeStatements().stream()
-                .flatMap(statement -> statement.getAttributes().stream())
-                .filter(elementWith(attributeName))
-                .filter(elementWithTrustLevel())
-                .map(attributeType ->
-                        attributeType.getAttribute().getOtherAttributes().get(TRUST_LEVEL_QNAME))
-                .flatMap(trustLevel -> Optional.ofNullable(AuthnLevel.fromAkdbTrustlevel(trustLevel)).stream())
-                .map(AuthnLevel::getFullname)
-                .findFirst();
+    @Override
+    public Set<String> getClientScopes(IdentityProviderMapperModel mapperModel) {
+        return compiledConfigs().get(mapperModel).getClientScopes();
     }
 
-    private List<String> findAttributeValuesInContext(String attributeName, BrokeredIdentityContext context) {
-        AssertionType assertion = (AssertionType) context.getContextData().get(SAMLEndpoint.SAML_ASSERTION);
+    @Override
+    public Set<String> getSatisfiedOids(
+            IdentityProviderMapperModel mapperModel, UserSessionModel userSession, AuthnLevel level) {
+        Set<String> satisfied = new HashSet<>();
+        Map<String, CompactSessionNote.Attribute> compactAttributes = null;
+        for (MappedAttribute attribute : compiledConfigs().get(mapperModel).getAttributes()) {
+            if (attribute.oid() == null || attribute.noteKey() == null) {
+                continue;
+            }
 
-        return assertion.getAttributeStatements().stream()
-                .flatMap(statement -> statement.getAttributes().stream())
-                .filter(elementWith(attributeName))
-                .flatMap(attributeType -> attributeType.getAttribute().getAttributeValue().stream())
-                .filter(Objects::nonNull)
-                .map(Object::toString)
-                .collect(Collectors.toList());
-    }
+            AuthnLevel heldLevel = null;
+            if (attribute.compact()) {
+                if (compactAttributes == null) {
+                    compactAttributes = CompactSessionNote.decode(userSession.getNote(CompactSessionNote.NOTE));
+                }
+                CompactSessionNote.Attribute compactAttribute =
+                        compactAttributes.get(attribute.noteKey().substring(BUNDID_SESSION_ATTRIBUTE_PREFIX.length()));
+                heldLevel = compactAttribute == null ? null : compactAttribute.level();
+            }
+            // Compact attributes without a level are held in the compact note with no level, which never satisfies a
+            // level. Separate notes remain for non-compact attributes and compact ones with an unknown level.
+            if (heldLevel == null && userSession.getNote(attribute.noteKey()) != null) {
+                heldLevel = AuthnLevel.fromFullname(userSession.getNote(attribute.noteKey() + VERIFIED_LEVEL_SUFFIX));
+            }
 
-    @Override
-    public String getHelpText() {
-        return "Import declared saml attribute if it exists in assertion into the specified session attribute.";
+            if (heldLevel != null && heldLevel.getLevel() >= level.getLevel()) {
+                satisfied.add(attribute.oid());
+            }
+        }
+        return satisfied;
     }
 
     @Override
     public void updateRequest(IdentityProviderMapperModel mapperModel, AuthnRequestType authnRequest) {
-        String attributeOid = mapperModel.getConfig().get(ATTRIBUTE_OID);
-        boolean required = Boolean.parseBoolean(mapperModel.getConfig().get(ATTRIBUTE_REQUIRED));
-
-        if (attributeOid == null) {
-            return;
+        AuthenticationRequest authenticationRequest = AuthenticationRequest.readExistingOrCreate(authnRequest);
+        updateRequest(mapperModel, authenticationRequest);
+        if (!authenticationRequest.isEmpty()) {
+            authenticationRequest.addOrUpdate(authnRequest);
         }
+    }
 
-        AuthenticationRequest existingExtension = AuthenticationRequest.readExisting(authnRequest);
+    @Override
+    public void updateRequest(IdentityProviderMapperModel mapperModel, AuthenticationRequest authenticationRequest) {
+        for (MappedAttribute attribute : compiledConfigs().get(mapperModel).getAttributes()) {
+            if (attribute.oid() == null) {
+                continue;
+            }
 
-        RequestedAttribute requestedAttribute = new RequestedAttribute();
-        requestedAttribute.setName(attributeOid);
-        requestedAttribute.setRequiredAttribute(required);
+            RequestedAttribute requestedAttribute = new RequestedAttribute();
+            requestedAttribute.setName(attribute.oid());
+            requestedAttribute.setRequiredAttribute(attribute.required());
 
-        if (existingExtension != null) {
-            existingExtension.getRequestedAttributes().getRequestedAttributes().add(requestedAttribute);
-            existingExtension.addOrUpdate(authnRequest);
-        } else {
-            AuthenticationRequest authenticationRequest = new AuthenticationRequest();
             authenticationRequest
                     .getRequestedAttributes()
                     .getRequestedAttributes()
                     .add(requestedAttribute);
-
-            authenticationRequest.addOrUpdate(authnRequest);
         }
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import static org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper.JSON_TYPE;
+import static org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME;
+
+import de.ba.oiam.keycloak.bundid.BoundedCache;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.keycloak.models.ProtocolMapperModel;
+
+/**
+ * Read-only copies of a {@link ProtocolMapperModel} with {@code claim.name} set to a single claim, so a mapper can emit
+ * several claims without writing into the model shared by concurrent token requests.
+ * <p>
+ * For structured claims the {@code jsonType.label} of the model is dropped, so the value is not converted.
+ */
+final class ClaimMapperModels {
+    private static final int MAX_CACHE_SIZE = 1024;
+
+    // Bounded, as removed mappers are never evicted otherwise
+    private final BoundedCache<String, ClaimModels> modelsByMapperId = new BoundedCache<>(MAX_CACHE_SIZE);
+    private final boolean structured;
+
+    ClaimMapperModels(boolean structured) {
+        this.structured = structured;
+    }
+
+    /**
+     * @return a copy of {@code mappingModel} whose config is unmodifiable and maps the value to {@code claimName}
+     */
+    ProtocolMapperModel get(ProtocolMapperModel mappingModel, String claimName) {
+        String id = mappingModel.getId();
+        if (id == null) {
+            return copy(mappingModel, claimName);
+        }
+
+        ClaimModels models = modelsByMapperId.get(id);
+        if (models == null || !models.isCopiedFrom(mappingModel.getConfig())) {
+            models = new ClaimModels(mappingModel.getConfig());
+            modelsByMapperId.put(id, models);
+        }
+        return models.get(mappingModel, claimName);
+    }
+
+    private ProtocolMapperModel copy(ProtocolMapperModel mappingModel, String claimName) {
+        Map<String, String> config =
+                mappingModel.getConfig() == null ? new HashMap<>() : new HashMap<>(mappingModel.getConfig());
+        config.put(TOKEN_CLAIM_NAME, claimName);
+        if (structured) {
+            config.remove(JSON_TYPE);
+        }
+
+        ProtocolMapperModel copy = new ProtocolMapperModel();
+        copy.setId(mappingModel.getId());
+        copy.setName(mappingModel.getName());
+        copy.setProtocol(mappingModel.getProtocol());
+        copy.setProtocolMapper(mappingModel.getProtocolMapper());
+        copy.setConfig(Collections.unmodifiableMap(config));
+        return copy;
+    }
+
+    /**
+     * Claim models derived from one version of a mapper config.
+     */
+    private class ClaimModels {
+        private final Map<String, String> source;
+        private final BoundedCache<String, ProtocolMapperModel> modelsByClaim = new BoundedCache<>(MAX_CACHE_SIZE);
+        // Config map of the mapper model last seen with this config, Keycloak hands out the same one until it changes
+        private volatile Map<String, String> lastConfig;
+
+        ClaimModels(Map<String, String> source) {
+            this.source = source == null ? Map.of() : Collections.unmodifiableMap(new HashMap<>(source));
+            this.lastConfig = source;
+        }
+
+        // Only compares the entries if the model's config is not the map seen last, which is not updated in place
+        boolean isCopiedFrom(Map<String, String> config) {
+            if (config == lastConfig) {
+                return true;
+            }
+            if (!source.equals(config == null ? Map.of() : config)) {
+                return false;
+            }
+
+            lastConfig = config;
+            return true;
+        }
+
+        ProtocolMapperModel get(ProtocolMapperModel mappingModel, String claimName) {
+            ProtocolMapperModel model = modelsByClaim.get(claimName);
+            if (model == null) {
+                model = copy(mappingModel, claimName);
+                modelsByClaim.put(claimName, model);
+            }
+            return model;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import de.ba.oiam.keycloak.bundid.AuthnLevel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jboss.logging.Logger;
+
+/**
+ * Encoding of all automapped BundID attributes of a user session in one note.
+ * <p>
+ * Version 1 is the character {@code 1} followed by one entry per attribute:
+ * {@code <level><name length>:<name><value length>:<value>}. The level is a single digit, {@code 0} for no trust level
+ * and {@code 1} to {@code 4} for the STORK levels. Names are stored without
+ * {@link BundIdUserSessionAttributeMapper#BUNDID_SESSION_ATTRIBUTE_PREFIX}.
+ */
+public final class CompactSessionNote {
+    private static final Logger LOG = Logger.getLogger(CompactSessionNote.class);
+
+    public static final String NOTE = "ba.bundid_compact";
+    private static final char VERSION = '1';
+
+    public record Attribute(String value, AuthnLevel level) {}
+
+    private CompactSessionNote() {}
+
+    public static String encode(Map<String, Attribute> attributes) {
+        StringBuilder note = new StringBuilder().append(VERSION);
+        attributes.forEach((name, attribute) -> {
+            note.append(attribute.level() == null ? 0 : attribute.level().getLevel());
+            append(note, name);
+            append(note, attribute.value());
+        });
+        return note.toString();
+    }
+
+    /**
+     * @return the attributes in encoding order, empty if the note is missing or cannot be read
+     */
+    public static Map<String, Attribute> decode(String note) {
+        Map<String, Attribute> attributes = new LinkedHashMap<>();
+        if (note == null || note.isEmpty()) {
+            return attributes;
+        }
+        if (note.charAt(0) != VERSION) {
+            LOG.warnf("Ignoring BundID session note with unknown version '%s'", note.charAt(0));
+            return attributes;
+        }
+
+        try {
+            int[] position = {1};
+            while (position[0] < note.length()) {
+                int level = note.charAt(position[0]++) - '0';
+                String name = read(note, position);
+                String value = read(note, position);
+                attributes.put(name, new Attribute(value, level == 0 ? null : AuthnLevel.fromLoA(level)));
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Ignoring malformed BundID session note", e);
+            attributes.clear();
+        }
+        return attributes;
+    }
+
+    private static void append(StringBuilder note, String text) {
+        String value = text == null ? "" : text;
+        note.append(value.length()).append(':').append(value);
+    }
+
+    private static String read(String note, int[] position) {
+        int separator = note.indexOf(':', position[0]);
+        int length = Integer.parseInt(note, position[0], separator, 10);
+        int start = separator + 1;
+        position[0] = start + length;
+        return note.substring(start, position[0]);
+    }
+}
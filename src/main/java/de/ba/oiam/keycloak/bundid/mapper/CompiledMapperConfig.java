@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import de.ba.oiam.keycloak.bundid.BoundedCache;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.keycloak.models.IdentityProviderMapperModel;
+
+/**
+ * Immutable, typed view of the config of one BundID mapper instance, so the per-login path does not have to parse the
+ * config strings again.
+ */
+public final class CompiledMapperConfig {
+    private final Map<String, String> source;
+    // Config map of the mapper model last seen with this config, Keycloak hands out the same one until it changes
+    private volatile Map<String, String> lastConfig;
+    private final List<MappedAttribute> attributes;
+    private final Set<String> clientScopes;
+
+    /**
+     * One attribute of a mapper.
+     *
+     * @param oid OID for the RequestedAttribute or {@code null}
+     * @param matchKey key for {@link AssertionAttributeIndex#getValuesByMatchKey(String)}
+     * @param noteKey full user session note key or {@code null} if the attribute is not mapped
+     * @param compact whether the note is stored in {@link CompactSessionNote}, only for automapped notes
+     */
+    public record MappedAttribute(
+            String oid, boolean required, String attributeName, String matchKey, String noteKey, boolean compact) {
+
+        public MappedAttribute(String oid, boolean required, String attributeName, String noteKey, boolean compact) {
+            this(
+                    oid,
+                    required,
+                    attributeName,
+                    AssertionAttributeIndex.matchKey(attributeName),
+                    noteKey,
+                    compact
+                            && noteKey != null
+                            && noteKey.startsWith(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX));
+        }
+    }
+
+    private CompiledMapperConfig(Map<String, String> source, List<MappedAttribute> attributes) {
+        this.source = source == null ? Map.of() : Collections.unmodifiableMap(new HashMap<>(source));
+        this.lastConfig = source;
+        this.attributes = List.copyOf(attributes);
+        this.clientScopes = parseClientScopes(this.source.get(BundIdUserSessionAttributeMapper.CLIENT_SCOPES));
+    }
+
+    public List<MappedAttribute> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return scopes of which the client needs one to request the attributes, empty if they are always requested
+     */
+    public Set<String> getClientScopes() {
+        return clientScopes;
+    }
+
+    private static Set<String> parseClientScopes(String clientScopes) {
+        if (clientScopes == null || clientScopes.isBlank()) {
+            return Set.of();
+        }
+
+        Set<String> scopes = new LinkedHashSet<>();
+        for (String scope : clientScopes.split("[,\\s]+")) {
+            if (!scope.isEmpty()) {
+                scopes.add(scope);
+            }
+        }
+        return Collections.unmodifiableSet(scopes);
+    }
+
+    // Only compares the entries if the model's config is not the map seen last, which is not updated in place
+    private boolean isCompiledFrom(Map<String, String> config) {
+        if (config == lastConfig) {
+            return true;
+        }
+        if (!source.equals(config == null ? Map.of() : config)) {
+            return false;
+        }
+
+        lastConfig = config;
+        return true;
+    }
+
+    /**
+     * Compiled configs keyed by mapper model id. A cached config is reused as long as the model's config is unchanged.
+     * The cache is bounded, as removed mappers are never evicted otherwise.
+     */
+    static class Cache {
+        private static final int MAX_CACHE_SIZE = 1024;
+
+        private final BoundedCache<String, CompiledMapperConfig> configsByMapperId = new BoundedCache<>(MAX_CACHE_SIZE);
+        private final Function<Map<String, String>, List<MappedAttribute>> compiler;
+
+        Cache(Function<Map<String, String>, List<MappedAttribute>> compiler) {
+            this.compiler = compiler;
+        }
+
+        CompiledMapperConfig get(IdentityProviderMapperModel mapperModel) {
+            Map<String, String> config = mapperModel.getConfig();
+            String id = mapperModel.getId();
+            if (id == null) {
+                return compile(config);
+            }
+
+            CompiledMapperConfig compiled = configsByMapperId.get(id);
+            if (compiled == null || !compiled.isCompiledFrom(config)) {
+                compiled = compile(config);
+                configsByMapperId.put(id, compiled);
+            }
+            return compiled;
+        }
+
+        private CompiledMapperConfig compile(Map<String, String> config) {
+            return new CompiledMapperConfig(config, compiler.apply(config == null ? Map.of() : config));
+        }
+    }
+}
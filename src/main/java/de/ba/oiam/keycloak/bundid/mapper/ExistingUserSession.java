@@ -0,0 +1,104 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import java.util.List;
+import java.util.Objects;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+/**
+ * Lookup of the user session a login (e.g. a step-up) continues. Keycloak creates user sessions with the id of the
+ * root authentication session, so the session is found without a cookie lookup.
+ */
+public final class ExistingUserSession {
+    private static final Logger LOG = Logger.getLogger(ExistingUserSession.class);
+
+    /**
+     * Auth note holding the id of the user session a delta login continues.
+     */
+    public static final String DELTA_NOTE = "BUNDID_DELTA_USER_SESSION";
+
+    private ExistingUserSession() {}
+
+    /**
+     * @return the user session of the browser which started {@code authSession}, or {@code null}
+     */
+    public static UserSessionModel find(
+            KeycloakSession session, RealmModel realm, AuthenticationSessionModel authSession) {
+        if (session == null || realm == null || authSession == null) {
+            return null;
+        }
+
+        RootAuthenticationSessionModel rootSession = authSession.getParentSession();
+        if (rootSession == null || rootSession.getId() == null) {
+            return null;
+        }
+        return session.sessions().getUserSession(realm, rootSession.getId());
+    }
+
+    /**
+     * Marks {@code authSession} as a login which only requests the attributes missing in {@code userSession}.
+     */
+    public static void markDelta(AuthenticationSessionModel authSession, UserSessionModel userSession) {
+        authSession.setAuthNote(DELTA_NOTE, userSession.getId());
+    }
+
+    /**
+     * Copies the compact note and the manifest of the user session a delta login continues to its authentication
+     * session, so the BundID mappers merge into them. Keycloak copies the notes of the authentication session over the
+     * ones of the user session it continues, which would otherwise drop the attributes not requested again.
+     * <p>
+     * The notes are only copied if the user session belongs to the BundID identity which just logged in. The check is
+     * done once per login, later calls return immediately.
+     */
+    public static void carryOverNotes(KeycloakSession session, RealmModel realm, BrokeredIdentityContext context) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        String userSessionId = authSession == null ? null : authSession.getAuthNote(DELTA_NOTE);
+        if (userSessionId == null) {
+            return;
+        }
+        authSession.removeAuthNote(DELTA_NOTE);
+
+        UserSessionModel userSession = session.sessions().getUserSession(realm, userSessionId);
+        if (userSession == null) {
+            return;
+        }
+        FederatedIdentityModel identity = session.users()
+                .getFederatedIdentity(
+                        realm, userSession.getUser(), context.getIdpConfig().getAlias());
+        if (identity == null || !Objects.equals(identity.getUserId(), context.getId())) {
+            LOG.warnf(
+                    "BundID identity differs from user session %s, attributes held by it are not carried over",
+                    userSessionId);
+            return;
+        }
+
+        for (String note : List.of(CompactSessionNote.NOTE, SessionNoteManifest.NOTE)) {
+            String value = userSession.getNote(note);
+            if (value != null && SessionNoteBuffer.notes(session, authSession).get(note) == null) {
+                SessionNoteBuffer.write(session, authSession, note, value);
+            }
+        }
+    }
+}
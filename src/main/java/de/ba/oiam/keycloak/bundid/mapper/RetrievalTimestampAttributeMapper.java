@@ -17,6 +17,8 @@
 package de.ba.oiam.keycloak.bundid.mapper;
 
 import com.google.auto.service.AutoService;
+import de.ba.oiam.keycloak.bundid.BundIdMetrics;
+import de.ba.oiam.keycloak.bundid.BundIdTracing;
 import java.util.*;
 import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
@@ -85,7 +87,9 @@ public class RetrievalTimestampAttributeMapper extends AbstractIdentityProviderM
             RealmModel realm,
             IdentityProviderMapperModel mapperModel,
             BrokeredIdentityContext context) {
-        setSessionAttribute(mapperModel, context);
+        long start = System.nanoTime();
+        setSessionAttribute(session, mapperModel, context);
+        BundIdMetrics.recordMapper(realm, context, getId(), start);
     }
 
     @Override
@@ -95,7 +99,7 @@ public class RetrievalTimestampAttributeMapper extends AbstractIdentityProviderM
             UserModel user,
             IdentityProviderMapperModel mapperModel,
             BrokeredIdentityContext context) {
-        setSessionAttribute(mapperModel, context);
+        setSessionAttribute(session, mapperModel, context);
     }
 
     @Override
@@ -105,16 +109,21 @@ public class RetrievalTimestampAttributeMapper extends AbstractIdentityProviderM
             UserModel user,
             IdentityProviderMapperModel mapperModel,
             BrokeredIdentityContext context) {
-        setSessionAttribute(mapperModel, context);
+        setSessionAttribute(session, mapperModel, context);
     }
 
-    private void setSessionAttribute(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+    private void setSessionAttribute(
+            KeycloakSession session, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
         String attribute = mapperModel.getConfig().get(SESSION_ATTRIBUTE);
         if (StringUtil.isNullOrEmpty(attribute)) {
             return;
         }
 
-        context.getAuthenticationSession().setUserSessionNote(attribute, String.valueOf(Time.currentTime()));
+        BundIdTracing.get(session).trace(RetrievalTimestampAttributeMapper.class, "updateSession", span -> {
+            span.setAttribute(BundIdTracing.MAPPER, getId());
+            SessionNoteBuffer.write(
+                    session, context.getAuthenticationSession(), attribute, String.valueOf(Time.currentTime()));
+        });
     }
 
     @Override
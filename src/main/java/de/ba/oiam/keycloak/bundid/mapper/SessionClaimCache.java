@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import de.ba.oiam.keycloak.bundid.BoundedCache;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+
+/**
+ * BundID claims per user session id, so refresh token grants and userinfo requests do not read and decode the notes
+ * again. Only used with {@link BundIdProtocolMapper#MANIFEST_ONLY}, as other notes can change without a new revision.
+ * <p>
+ * An entry is valid as long as the {@link SessionNoteManifest} of the session is unchanged, its revision changes with
+ * every note written by the BundID mappers. Sessions without a manifest are not cached.
+ * <p>
+ * Entries expire after the SSO session idle timeout of the realm, and at the latest when the SSO session max lifespan
+ * of the session is reached, so entries of ended sessions are dropped without a logout event. An expired entry of a
+ * session in use is loaded again. Expired entries are evicted on later inserts, the oldest entries once the cache is
+ * full.
+ */
+final class SessionClaimCache<T> {
+    private static final int MAX_CACHE_SIZE = 10_000;
+    // Used if the session has no realm with timeouts
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private final BoundedCache<String, Entry<T>> claimsBySessionId = new BoundedCache<>(MAX_CACHE_SIZE);
+    private final Function<UserSessionModel, T> loader;
+
+    private record Entry<T>(String manifest, T claims, long expiresAt) {}
+
+    SessionClaimCache(Function<UserSessionModel, T> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @return the claims loaded for the current manifest of {@code userSession}, shared between requests
+     */
+    T get(UserSessionModel userSession) {
+        String manifest = userSession.getNote(SessionNoteManifest.NOTE);
+        String id = userSession.getId();
+        if (manifest == null || id == null) {
+            return loader.apply(userSession);
+        }
+
+        long now = Time.currentTimeMillis();
+        Entry<T> entry = claimsBySessionId.get(id);
+        if (entry == null || entry.expiresAt() <= now || !entry.manifest().equals(manifest)) {
+            entry = new Entry<>(manifest, loader.apply(userSession), expiresAt(userSession, now));
+            claimsBySessionId.put(id, entry);
+            claimsBySessionId.evictWhile(cached -> cached.expiresAt() <= now);
+        }
+        return entry.claims();
+    }
+
+    private static long expiresAt(UserSessionModel userSession, long now) {
+        RealmModel realm = userSession.getRealm();
+        if (realm == null) {
+            return now + DEFAULT_TTL_MILLIS;
+        }
+
+        long expiresAt = realm.getSsoSessionIdleTimeout() > 0
+                ? now + TimeUnit.SECONDS.toMillis(realm.getSsoSessionIdleTimeout())
+                : now + DEFAULT_TTL_MILLIS;
+        if (realm.getSsoSessionMaxLifespan() > 0 && userSession.getStarted() > 0) {
+            expiresAt = Math.min(
+                    expiresAt,
+                    TimeUnit.SECONDS.toMillis((long) userSession.getStarted() + realm.getSsoSessionMaxLifespan()));
+        }
+        return expiresAt;
+    }
+}
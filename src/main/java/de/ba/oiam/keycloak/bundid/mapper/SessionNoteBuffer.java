@@ -0,0 +1,192 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import de.ba.oiam.keycloak.bundid.AuthnLevel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * Collects the user session notes of one BundID mapper invocation and writes those which differ from the current
+ * notes of the authentication session.
+ * <p>
+ * Keycloak writes the authentication session to its cache once per transaction however often notes are set, and
+ * {@link AuthenticationSessionModel#getUserSessionNotes()} returns a copy of all notes on every call. The buffer reads
+ * the notes once per login and keeps the copy up to date with its own writes, so the mappers of a login compare
+ * against it instead of copying the notes per note. Skipping unchanged notes keeps the authentication session
+ * unchanged when a later phase maps the same values (e.g. {@code updateBrokeredUser} after
+ * {@code preprocessFederatedIdentity}), and the manifest and the compact note are updated once per mapper instead of
+ * once per note.
+ * <p>
+ * Notes set by other code between the BundID mappers of a login are not seen, which only matters for the notes
+ * written by the BundID mappers themselves.
+ */
+class SessionNoteBuffer {
+    private static final String SESSION_ATTRIBUTE = SessionNoteBuffer.class.getName();
+
+    private final AuthenticationSessionModel authSession;
+    private final Map<String, String> notes = new LinkedHashMap<>();
+    private final Set<String> compactKeys = new LinkedHashSet<>();
+    private Map<String, String> current;
+    private boolean active;
+
+    private SessionNoteBuffer(AuthenticationSessionModel authSession) {
+        this.authSession = authSession;
+    }
+
+    /**
+     * @return the buffer for one mapper invocation, or {@code null} if notes have to be written directly
+     */
+    static SessionNoteBuffer begin(KeycloakSession session, AuthenticationSessionModel authSession) {
+        SessionNoteBuffer buffer = forLogin(session, authSession);
+        if (buffer != null) {
+            buffer.active = true;
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the buffer collecting notes for {@code authSession}, if a mapper invocation is running
+     */
+    static SessionNoteBuffer find(KeycloakSession session, AuthenticationSessionModel authSession) {
+        if (session == null) {
+            return null;
+        }
+
+        SessionNoteBuffer buffer = session.getAttribute(SESSION_ATTRIBUTE, SessionNoteBuffer.class);
+        return buffer != null && buffer.active && buffer.authSession == authSession ? buffer : null;
+    }
+
+    /**
+     * @return the user session notes of {@code authSession}, read once per login if {@code session} is given
+     */
+    static Map<String, String> notes(KeycloakSession session, AuthenticationSessionModel authSession) {
+        SessionNoteBuffer buffer = forLogin(session, authSession);
+        return buffer == null ? authSession.getUserSessionNotes() : Collections.unmodifiableMap(buffer.current());
+    }
+
+    /**
+     * Writes a single note, updating the manifest only if the note is automapped and changed.
+     */
+    static void write(KeycloakSession session, AuthenticationSessionModel authSession, String key, String value) {
+        SessionNoteBuffer buffer = find(session, authSession);
+        if (buffer != null) {
+            buffer.stage(key, value);
+            return;
+        }
+
+        buffer = forLogin(session, authSession);
+        if (buffer == null) {
+            buffer = new SessionNoteBuffer(authSession);
+        }
+        buffer.stage(key, value);
+        buffer.finish(session);
+    }
+
+    // One buffer per login, kept in the session so the notes are read once
+    private static SessionNoteBuffer forLogin(KeycloakSession session, AuthenticationSessionModel authSession) {
+        if (session == null || authSession == null) {
+            return null;
+        }
+
+        SessionNoteBuffer buffer = session.getAttribute(SESSION_ATTRIBUTE, SessionNoteBuffer.class);
+        if (buffer == null || buffer.authSession != authSession) {
+            buffer = new SessionNoteBuffer(authSession);
+            session.setAttribute(SESSION_ATTRIBUTE, buffer);
+        }
+        return buffer;
+    }
+
+    void stage(String key, String value) {
+        notes.put(key, value);
+    }
+
+    /**
+     * Stores the note {@code key} and its verified level in {@link CompactSessionNote} instead of separate notes.
+     */
+    void storeCompact(String key) {
+        compactKeys.add(key);
+    }
+
+    /**
+     * Writes the changed notes, called once the mapper is done.
+     */
+    void finish(KeycloakSession session) {
+        active = false;
+        if (notes.isEmpty()) {
+            compactKeys.clear();
+            return;
+        }
+
+        Map<String, String> current = current();
+        if (!compactKeys.isEmpty()) {
+            stageCompactNote(current.get(CompactSessionNote.NOTE));
+        }
+        notes.entrySet().removeIf(note -> Objects.equals(current.get(note.getKey()), note.getValue()));
+        if (notes.keySet().stream().anyMatch(SessionNoteBuffer::isMapped)) {
+            notes.put(
+                    SessionNoteManifest.NOTE,
+                    SessionNoteManifest.update(current.get(SessionNoteManifest.NOTE), notes.keySet()));
+        }
+        notes.forEach(authSession::setUserSessionNote);
+        current.putAll(notes);
+        notes.clear();
+    }
+
+    // Notes whose change is tracked by the manifest revision
+    private static boolean isMapped(String key) {
+        return key.startsWith(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX)
+                || key.equals(CompactSessionNote.NOTE);
+    }
+
+    // Copy of the notes of the authentication session, read on first use
+    private Map<String, String> current() {
+        if (current == null) {
+            current = new HashMap<>(authSession.getUserSessionNotes());
+        }
+        return current;
+    }
+
+    private void stageCompactNote(String currentNote) {
+        Map<String, CompactSessionNote.Attribute> attributes = CompactSessionNote.decode(currentNote);
+        for (String key : compactKeys) {
+            String value = notes.get(key);
+            String levelKey = key + BundIdUserSessionAttributeMapper.VERIFIED_LEVEL_SUFFIX;
+            String levelName = notes.get(levelKey);
+            AuthnLevel level = levelName == null ? null : AuthnLevel.fromFullname(levelName);
+            if (value == null || (levelName != null && level == null)) {
+                // Not written by the BundID mapper itself, keep the separate notes
+                continue;
+            }
+
+            notes.remove(key);
+            notes.remove(levelKey);
+            attributes.put(
+                    key.substring(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX.length()),
+                    new CompactSessionNote.Attribute(value, level));
+        }
+        compactKeys.clear();
+        notes.put(CompactSessionNote.NOTE, CompactSessionNote.encode(attributes));
+    }
+}
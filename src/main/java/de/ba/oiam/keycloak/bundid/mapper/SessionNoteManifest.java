@@ -0,0 +1,85 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid.mapper;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.keycloak.common.util.Time;
+
+/**
+ * List of the automapped BundID notes of a user session, so {@link BundIdProtocolMapper} with
+ * {@link BundIdProtocolMapper#MANIFEST_ONLY} can read them by key instead of scanning all notes.
+ * <p>
+ * The manifest is one note with the names (without
+ * {@link BundIdUserSessionAttributeMapper#BUNDID_SESSION_ATTRIBUTE_PREFIX}) separated by line breaks. It only lists
+ * notes written by the mappers of this extension. The first line is a revision which changes whenever one of these
+ * mappers writes a note, so the manifest can be used to validate data derived from the notes.
+ */
+public final class SessionNoteManifest {
+    public static final String NOTE = "ba.bundid_manifest";
+    private static final String SEPARATOR = "\n";
+    private static final String REVISION_MARKER = "#";
+
+    private SessionNoteManifest() {}
+
+    /**
+     * @return the names listed in {@code manifest}, empty if there is none
+     */
+    public static Set<String> parse(String manifest) {
+        Set<String> names = new LinkedHashSet<>();
+        if (manifest != null && !manifest.isEmpty()) {
+            for (String line : manifest.split(SEPARATOR)) {
+                if (!line.startsWith(REVISION_MARKER)) {
+                    names.add(line);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return {@code manifest} extended by the automapped ones of {@code noteKeys} with the next revision
+     */
+    static String update(String manifest, Collection<String> noteKeys) {
+        Set<String> names = parse(manifest);
+        for (String noteKey : noteKeys) {
+            if (noteKey.startsWith(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX)) {
+                names.add(noteKey.substring(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX.length()));
+            }
+        }
+
+        // Based on the clock, so the manifest of a new authentication session never repeats the one of the user session
+        long revision = Math.max(revision(manifest) + 1, Time.currentTimeMillis());
+        StringBuilder updated = new StringBuilder(REVISION_MARKER).append(revision);
+        names.forEach(name -> updated.append(SEPARATOR).append(name));
+        return updated.toString();
+    }
+
+    private static long revision(String manifest) {
+        if (manifest == null || !manifest.startsWith(REVISION_MARKER)) {
+            return 0;
+        }
+
+        int end = manifest.indexOf(SEPARATOR);
+        try {
+            return Long.parseLong(manifest.substring(REVISION_MARKER.length(), end < 0 ? manifest.length() : end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
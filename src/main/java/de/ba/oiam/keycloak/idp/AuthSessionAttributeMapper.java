@@ -17,18 +17,15 @@
 package de.ba.oiam.keycloak.idp;
 
 import com.google.auto.service.AutoService;
+import de.ba.oiam.keycloak.bundid.BundIdMetrics;
+import de.ba.oiam.keycloak.bundid.BundIdTracing;
+import de.ba.oiam.keycloak.bundid.mapper.AssertionAttributeIndex;
 import java.util.*;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.provider.IdentityProviderMapper;
-import org.keycloak.broker.saml.SAMLEndpoint;
 import org.keycloak.broker.saml.SAMLIdentityProviderFactory;
-import org.keycloak.dom.saml.v2.assertion.AssertionType;
-import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
-import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.models.*;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
@@ -128,7 +125,9 @@ public class AuthSessionAttributeMapper extends AbstractIdentityProviderMapper {
             RealmModel realm,
             IdentityProviderMapperModel mapperModel,
             BrokeredIdentityContext context) {
-        setAuthNote(mapperModel, context);
+        long start = System.nanoTime();
+        setAuthNote(session, mapperModel, context);
+        BundIdMetrics.recordMapper(realm, context, getId(), start);
     }
 
     @Override
@@ -138,7 +137,7 @@ public class AuthSessionAttributeMapper extends AbstractIdentityProviderMapper {
             UserModel user,
             IdentityProviderMapperModel mapperModel,
             BrokeredIdentityContext context) {
-        setAuthNote(mapperModel, context);
+        setAuthNote(session, mapperModel, context);
     }
 
     @Override
@@ -148,23 +147,29 @@ public class AuthSessionAttributeMapper extends AbstractIdentityProviderMapper {
             UserModel user,
             IdentityProviderMapperModel mapperModel,
             BrokeredIdentityContext context) {
-        setAuthNote(mapperModel, context);
+        setAuthNote(session, mapperModel, context);
     }
 
-    private void setAuthNote(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+    private void setAuthNote(
+            KeycloakSession session, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
         String attribute = mapperModel.getConfig().get(SESSION_ATTRIBUTE);
         if (StringUtil.isNullOrEmpty(attribute)) {
             return;
         }
         String attributeName = getAttributeNameFromMapperModel(mapperModel);
 
-        List<String> attributeValuesInContext = findAttributeValuesInContext(attributeName, context);
-        if (attributeValuesInContext != null && !attributeValuesInContext.isEmpty()) {
-            if (attributeValuesInContext.size() > 1) {
-                LOG.warnf("Attribute '%s' has more than one value. Discarding all but the first.", attributeName);
+        BundIdTracing.get(session).trace(AuthSessionAttributeMapper.class, "updateSession", span -> {
+            span.setAttribute(BundIdTracing.MAPPER, getId());
+            List<String> attributeValuesInContext =
+                    AssertionAttributeIndex.of(session, context).getValuesMatchingCase(attributeName);
+            if (attributeValuesInContext != null && !attributeValuesInContext.isEmpty()) {
+                if (attributeValuesInContext.size() > 1) {
+                    LOG.warnf("Attribute '%s' has more than one value. Discarding all but the first.", attributeName);
+                    BundIdMetrics.countTruncated(context);
+                }
+                context.getAuthenticationSession().setAuthNote(attribute, attributeValuesInContext.get(0));
             }
-            context.getAuthenticationSession().setAuthNote(attribute, attributeValuesInContext.get(0));
-        }
+        });
     }
 
     private String getAttributeNameFromMapperModel(IdentityProviderMapperModel mapperModel) {
@@ -175,26 +180,6 @@ public class AuthSessionAttributeMapper extends AbstractIdentityProviderMapper {
         return attributeName;
     }
 
-    private Predicate<AttributeStatementType.ASTChoiceType> elementWith(String attributeName) {
-        return attributeType -> {
-            AttributeType attribute = attributeType.getAttribute();
-            return Objects.equals(attribute.getName(), attributeName)
-                    || Objects.equals(attribute.getFriendlyName(), attributeName);
-        };
-    }
-
-    private List<String> findAttributeValuesInContext(String attributeName, BrokeredIdentityContext context) {
-        AssertionType assertion = (AssertionType) context.getContextData().get(SAMLEndpoint.SAML_ASSERTION);
-
-        return assertion.getAttributeStatements().stream()
-                .flatMap(statement -> statement.getAttributes().stream())
-                .filter(elementWith(attributeName))
-                .flatMap(attributeType -> attributeType.getAttribute().getAttributeValue().stream())
-                .filter(Objects::nonNull)
-                .map(Object::toString)
-                .collect(Collectors.toList());
-    }
-
     @Override
     public String getHelpText() {
         return "Import declared saml attribute if it exists in assertion into the specified session attribute.";
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import de.ba.oiam.keycloak.bundid.mapper.AssertionAttributeIndex;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import org.junit.jupiter.api.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.saml.SAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.models.KeycloakSession;
+import org.mockito.Mockito;
+
+class AssertionAttributeIndexTest {
+
+    @Test
+    void looksUpAttributesByNameAndFriendlyName() throws DatatypeConfigurationException {
+        BrokeredIdentityContext context = createContext();
+
+        AssertionAttributeIndex index = AssertionAttributeIndex.of(null, context);
+
+        assertEquals(List.of("Mustermann"), index.getValues("urn:oid:2.5.4.4"));
+        assertEquals(List.of("Mustermann", "Musterfrau"), index.getValues("SURNAME"));
+        assertEquals(List.of("Erika"), index.getValues("givenName"));
+        assertEquals(List.of(), index.getValues("unknown"));
+        assertEquals(List.of(), index.getValues(null));
+        assertEquals(List.of(), index.getValuesMatchingCase("SURNAME"));
+        assertEquals(List.of("Mustermann"), index.getValuesMatchingCase("surname"));
+        assertEquals(Optional.of(AuthnLevel.STORK3), index.getTrustLevel("surname"));
+        assertEquals(Optional.empty(), index.getTrustLevel("givenName"));
+    }
+
+    @Test
+    void indexIsSharedWithinSessionForTheSameAssertion() throws DatatypeConfigurationException {
+        KeycloakSession session = createSession();
+        BrokeredIdentityContext context = createContext();
+
+        AssertionAttributeIndex first = AssertionAttributeIndex.of(session, context);
+        AssertionAttributeIndex second = AssertionAttributeIndex.of(session, context);
+        AssertionAttributeIndex other = AssertionAttributeIndex.of(session, createContext());
+
+        assertSame(first, second);
+        assertNotSame(first, other);
+    }
+
+    private static KeycloakSession createSession() {
+        Map<String, Object> attributes = new HashMap<>();
+        KeycloakSession session = Mockito.mock(KeycloakSession.class);
+        when(session.getAttribute(anyString(), any()))
+                .thenAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(session)
+                .setAttribute(anyString(), any());
+        return session;
+    }
+
+    private static BrokeredIdentityContext createContext() throws DatatypeConfigurationException {
+        AssertionType samlAssertion =
+                new AssertionType("response", DatatypeFactory.newInstance().newXMLGregorianCalendar());
+        AttributeStatementType attributeStatement = new AttributeStatementType();
+        AttributeType surname = new AttributeType("urn:oid:2.5.4.4");
+        surname.setFriendlyName("surname");
+        surname.getOtherAttributes().put(BundIdUserSessionAttributeMapper.TRUST_LEVEL_QNAME, "SUBSTANTIELL");
+        surname.addAttributeValue("Mustermann");
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(surname));
+        AttributeType givenName = new AttributeType("givenName");
+        givenName.addAttributeValue("Erika");
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(givenName));
+        AttributeType secondSurname = new AttributeType("Surname");
+        secondSurname.addAttributeValue("Musterfrau");
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(secondSurname));
+        samlAssertion.addStatement(attributeStatement);
+
+        BrokeredIdentityContext context = new BrokeredIdentityContext("test", null);
+        context.getContextData().put(SAMLEndpoint.SAML_ASSERTION, samlAssertion);
+        return context;
+    }
+}
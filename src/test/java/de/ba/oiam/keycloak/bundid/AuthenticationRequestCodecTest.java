@@ -0,0 +1,161 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequest;
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.DisplayInformation;
+import de.ba.oiam.keycloak.bundid.extension.model.DisplayInformationValue;
+import de.ba.oiam.keycloak.bundid.extension.model.DisplayInformationVersion;
+import de.ba.oiam.keycloak.bundid.extension.model.DomAuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.JaxbAuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.RequestedAttribute;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+
+class AuthenticationRequestCodecTest {
+    private final AuthenticationRequestCodec dom = new DomAuthenticationRequestCodec();
+    private final AuthenticationRequestCodec jaxb = new JaxbAuthenticationRequestCodec();
+
+    @Test
+    void domCodecWritesSameXmlAsJaxb() throws TransformerException {
+        AuthenticationRequest authenticationRequest = createAuthenticationRequest();
+
+        assertEquals(toXml(jaxb.write(authenticationRequest)), toXml(dom.write(authenticationRequest)));
+        assertEquals(toXml(jaxb.write(new AuthenticationRequest())), toXml(dom.write(new AuthenticationRequest())));
+    }
+
+    @Test
+    void domCodecReadsJaxbOutput() throws TransformerException {
+        AuthenticationRequest authenticationRequest = createAuthenticationRequest();
+
+        AuthenticationRequest read = dom.read(jaxb.write(authenticationRequest));
+
+        assertEquals("2", read.getVersion());
+        assertEquals(2, read.getRequestedAttributes().getRequestedAttributes().size());
+        assertEquals(
+                "urn:oid:1",
+                read.getRequestedAttributes().getRequestedAttributes().get(0).getName());
+        assertTrue(read.getRequestedAttributes().getRequestedAttributes().get(0).isRequiredAttribute());
+        assertEquals(
+                "BMI-4711",
+                read.getDisplayInformation().getVersion().getOnlineServiceId().getValue());
+        assertEquals(toXml(jaxb.write(authenticationRequest)), toXml(dom.write(read)));
+    }
+
+    @Test
+    void jaxbContextIsCreatedOnFirstUse() {
+        JaxbAuthenticationRequestCodec underTest = new JaxbAuthenticationRequestCodec();
+        assertFalse(underTest.isContextCreated());
+
+        underTest.write(createAuthenticationRequest());
+
+        assertTrue(underTest.isContextCreated());
+    }
+
+    @Test
+    void jaxbCodecReusesPooledMarshallers() {
+        JaxbAuthenticationRequestCodec underTest = new JaxbAuthenticationRequestCodec();
+
+        underTest.read(underTest.write(createAuthenticationRequest()));
+        underTest.read(underTest.write(createAuthenticationRequest()));
+
+        assertEquals(1, underTest.getMarshallers().getMisses());
+        assertEquals(1, underTest.getMarshallers().getHits());
+        assertEquals(1, underTest.getUnmarshallers().getHits());
+        assertEquals(1, underTest.getDocumentBuilders().getHits());
+    }
+
+    @Test
+    void poolMetricsArePublished() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            JaxbAuthenticationRequestCodec underTest = new JaxbAuthenticationRequestCodec();
+            BundIdMetrics.bindPool("marshaller", underTest.getMarshallers());
+
+            underTest.write(createAuthenticationRequest());
+            underTest.write(createAuthenticationRequest());
+
+            assertEquals(
+                    1,
+                    registry.get("bundid.xml.pool.borrows")
+                            .tags("pool", "marshaller", "result", "hit")
+                            .functionCounter()
+                            .count());
+            FunctionTimer creation = registry.get("bundid.xml.pool.creation")
+                    .tags("pool", "marshaller")
+                    .functionTimer();
+            assertEquals(1, creation.count());
+            assertEquals(underTest.getMarshallers().getCreationNanos(), creation.totalTime(TimeUnit.NANOSECONDS), 1);
+            assertEquals(
+                    1,
+                    registry.get("bundid.xml.pool.idle")
+                            .tags("pool", "marshaller")
+                            .gauge()
+                            .value());
+        } finally {
+            Metrics.removeRegistry(registry);
+        }
+    }
+
+    private static AuthenticationRequest createAuthenticationRequest() {
+        AuthenticationRequest authenticationRequest = new AuthenticationRequest();
+        authenticationRequest.getRequestedAttributes().getRequestedAttributes().add(createAttribute("urn:oid:1", true));
+        authenticationRequest
+                .getRequestedAttributes()
+                .getRequestedAttributes()
+                .add(createAttribute("urn:oid:2", false));
+
+        DisplayInformation displayInformation = new DisplayInformation();
+        displayInformation.setVersion(new DisplayInformationVersion());
+        DisplayInformationValue organizationDisplayName = new DisplayInformationValue();
+        organizationDisplayName.setValue("Bundesagentur für Arbeit");
+        displayInformation.getVersion().setOrganizationDisplayName(organizationDisplayName);
+        DisplayInformationValue onlineServiceId = new DisplayInformationValue();
+        onlineServiceId.setValue("BMI-4711");
+        displayInformation.getVersion().setOnlineServiceId(onlineServiceId);
+        authenticationRequest.setDisplayInformation(displayInformation);
+        return authenticationRequest;
+    }
+
+    private static RequestedAttribute createAttribute(String name, boolean required) {
+        RequestedAttribute requestedAttribute = new RequestedAttribute();
+        requestedAttribute.setName(name);
+        requestedAttribute.setRequiredAttribute(required);
+        return requestedAttribute;
+    }
+
+    private static String toXml(Element element) throws TransformerException {
+        StringWriter writer = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(element), new StreamResult(writer));
+        return writer.toString();
+    }
+}
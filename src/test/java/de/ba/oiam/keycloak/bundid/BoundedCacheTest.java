@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class BoundedCacheTest {
+    @Test
+    void evictsEntriesInsertedFirst() {
+        BoundedCache<String, String> cache = new BoundedCache<>(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("a", "3");
+        cache.put("c", "4");
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals("4", cache.get("c"));
+    }
+
+    @Test
+    void evictsExpiredEntriesFromTheStart() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(10);
+        cache.put("a", 1);
+        cache.put("b", 5);
+        cache.put("c", 2);
+
+        cache.evictWhile(expiresAt -> expiresAt <= 3);
+
+        assertNull(cache.get("a"));
+        assertEquals(5, cache.get("b"));
+        assertEquals(2, cache.get("c"));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequest;
+import de.ba.oiam.keycloak.bundid.extension.model.RequestedAttribute;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdAttributeTableMapper;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import java.util.HashMap;
+import java.util.List;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import org.junit.jupiter.api.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.saml.SAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.mockito.Mockito;
+
+class BundIdAttributeTableMapperTest {
+    private static final String TABLE =
+            """
+            # oid;attributeName;sessionKey;required;excludeFromAutomapper
+            urn:oid:2.5.4.42;;givenName;true
+            urn:oid:2.5.4.4;surname;familyName;false;true
+
+            urn:oid:1.2.3;;bpk2
+            ;missingOid;ignored
+            """;
+
+    @Test
+    void parsesTable() {
+        List<BundIdAttributeTableMapper.Row> rows = BundIdAttributeTableMapper.parse(TABLE);
+
+        assertEquals(3, rows.size());
+        assertEquals(
+                new BundIdAttributeTableMapper.Row("urn:oid:2.5.4.42", "urn:oid:2.5.4.42", "givenName", true, false),
+                rows.get(0));
+        assertEquals(
+                new BundIdAttributeTableMapper.Row("urn:oid:2.5.4.4", "surname", "familyName", false, true),
+                rows.get(1));
+        assertEquals("ba.familyName", rows.get(1).noteKey());
+        assertEquals(
+                BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX + "bpk2",
+                rows.get(2).noteKey());
+    }
+
+    @Test
+    void mapsAllRowsOfTheTable() throws DatatypeConfigurationException {
+        AssertionType samlAssertion =
+                new AssertionType("response", DatatypeFactory.newInstance().newXMLGregorianCalendar());
+        AttributeStatementType attributeStatement = new AttributeStatementType();
+        AttributeType givenName = new AttributeType("urn:oid:2.5.4.42");
+        givenName.getOtherAttributes().put(BundIdUserSessionAttributeMapper.TRUST_LEVEL_QNAME, "HOCH");
+        givenName.addAttributeValue("Erika");
+        AttributeType surname = new AttributeType("urn:oid:2.5.4.4");
+        surname.setFriendlyName("surname");
+        surname.addAttributeValue("Mustermann");
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(givenName));
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(surname));
+        samlAssertion.addStatement(attributeStatement);
+        BrokeredIdentityContext context = new BrokeredIdentityContext("test", null);
+        context.getContextData().put(SAMLEndpoint.SAML_ASSERTION, samlAssertion);
+        AuthenticationSessionModel authenticationSession = Mockito.mock(AuthenticationSessionModel.class);
+        context.setAuthenticationSession(authenticationSession);
+
+        new BundIdAttributeTableMapper().importNewUser(null, null, null, createMapperModel(), context);
+
+        String givenNameKey = BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX + "givenName";
+        verify(authenticationSession).setUserSessionNote(givenNameKey, "Erika");
+        verify(authenticationSession)
+                .setUserSessionNote(
+                        givenNameKey + BundIdUserSessionAttributeMapper.VERIFIED_LEVEL_SUFFIX,
+                        AuthnLevel.STORK4.getFullname());
+        verify(authenticationSession).setUserSessionNote("ba.familyName", "Mustermann");
+        verify(authenticationSession, never())
+                .setUserSessionNote(
+                        eq(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX + "bpk2"), anyString());
+    }
+
+    @Test
+    void requestsAllRowsOfTheTable() {
+        AuthenticationRequest authenticationRequest = new AuthenticationRequest();
+
+        new BundIdAttributeTableMapper().updateRequest(createMapperModel(), authenticationRequest);
+
+        List<RequestedAttribute> requestedAttributes =
+                authenticationRequest.getRequestedAttributes().getRequestedAttributes();
+        assertEquals(
+                List.of("urn:oid:2.5.4.42", "urn:oid:2.5.4.4", "urn:oid:1.2.3"),
+                requestedAttributes.stream().map(RequestedAttribute::getName).toList());
+        assertTrue(requestedAttributes.get(0).isRequiredAttribute());
+        assertFalse(requestedAttributes.get(1).isRequiredAttribute());
+    }
+
+    private static IdentityProviderMapperModel createMapperModel() {
+        IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+        mapperModel.setIdentityProviderMapper(BundIdAttributeTableMapper.PROVIDER_ID);
+        mapperModel.setConfig(new HashMap<>());
+        mapperModel.getConfig().put(BundIdAttributeTableMapper.ATTRIBUTE_TABLE, TABLE);
+        return mapperModel;
+    }
+}
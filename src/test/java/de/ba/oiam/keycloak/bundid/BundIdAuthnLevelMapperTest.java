@@ -0,0 +1,113 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import de.ba.oiam.keycloak.bundid.mapper.BundIdAuthnLevelMapper;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import org.junit.jupiter.api.Test;
+import org.keycloak.authentication.authenticators.util.AcrStore;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.saml.SAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.dom.saml.v2.assertion.AuthnContextClassRefType;
+import org.keycloak.dom.saml.v2.assertion.AuthnContextType;
+import org.keycloak.dom.saml.v2.assertion.AuthnStatementType;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.mockito.Mockito;
+
+class BundIdAuthnLevelMapperTest {
+
+    @Test
+    void authnContextClassRefIsRecorded() throws DatatypeConfigurationException {
+        AssertionType assertion = createAssertion("NORMAL");
+        AuthnContextType.AuthnContextTypeSequence sequence = new AuthnContextType.AuthnContextTypeSequence();
+        sequence.setClassRef(new AuthnContextClassRefType(URI.create(AuthnLevel.STORK4.getFullname())));
+        AuthnContextType authnContext = new AuthnContextType();
+        authnContext.setSequence(sequence);
+        AuthnStatementType authnStatement =
+                new AuthnStatementType(DatatypeFactory.newInstance().newXMLGregorianCalendar());
+        authnStatement.setAuthnContext(authnContext);
+        assertion.addStatement(authnStatement);
+
+        AuthenticationSessionModel authSession = createAuthSession();
+        new BundIdAuthnLevelMapper()
+                .preprocessFederatedIdentity(
+                        null, null, new IdentityProviderMapperModel(), createContext(assertion, authSession));
+
+        assertEquals(4, new AcrStore(null, authSession).getLevelOfAuthenticationFromCurrentAuthentication());
+    }
+
+    @Test
+    void lowestTrustLevelIsRecordedWithoutClassRef() throws DatatypeConfigurationException {
+        AuthenticationSessionModel authSession = createAuthSession();
+        new BundIdAuthnLevelMapper()
+                .preprocessFederatedIdentity(
+                        null,
+                        null,
+                        new IdentityProviderMapperModel(),
+                        createContext(createAssertion("HOCH", "SUBSTANTIELL"), authSession));
+
+        assertEquals(3, new AcrStore(null, authSession).getLevelOfAuthenticationFromCurrentAuthentication());
+    }
+
+    private static AssertionType createAssertion(String... trustLevels) throws DatatypeConfigurationException {
+        AssertionType assertion =
+                new AssertionType("response", DatatypeFactory.newInstance().newXMLGregorianCalendar());
+        AttributeStatementType attributeStatement = new AttributeStatementType();
+        for (int i = 0; i < trustLevels.length; i++) {
+            AttributeType attribute = new AttributeType("attrName" + i);
+            attribute.getOtherAttributes().put(BundIdUserSessionAttributeMapper.TRUST_LEVEL_QNAME, trustLevels[i]);
+            attribute.addAttributeValue("value" + i);
+            attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute));
+        }
+        assertion.addStatement(attributeStatement);
+        return assertion;
+    }
+
+    private static BrokeredIdentityContext createContext(
+            AssertionType assertion, AuthenticationSessionModel authSession) {
+        BrokeredIdentityContext context = new BrokeredIdentityContext("test", new IdentityProviderModel());
+        context.getContextData().put(SAMLEndpoint.SAML_ASSERTION, assertion);
+        context.setAuthenticationSession(authSession);
+        return context;
+    }
+
+    private static AuthenticationSessionModel createAuthSession() {
+        Map<String, String> authNotes = new HashMap<>();
+        AuthenticationSessionModel authSession = Mockito.mock(AuthenticationSessionModel.class);
+        when(authSession.getAuthNote(anyString()))
+                .thenAnswer(invocation -> authNotes.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> authNotes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(authSession)
+                .setAuthNote(anyString(), anyString());
+        return authSession;
+    }
+}
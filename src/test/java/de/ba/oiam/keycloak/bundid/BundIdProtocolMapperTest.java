@@ -0,0 +1,299 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.ba.oiam.keycloak.bundid.mapper.BundIdProtocolMapper;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import de.ba.oiam.keycloak.bundid.mapper.SessionNoteManifest;
+import io.opentelemetry.api.trace.Span;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.representations.IDToken;
+import org.keycloak.tracing.TracingProvider;
+import org.keycloak.util.JsonSerialization;
+import org.keycloak.utils.KeycloakSessionUtil;
+import org.mockito.Mockito;
+
+class BundIdProtocolMapperTest {
+    private static final String PREFIX = BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX;
+
+    @Test
+    void manifestedNotesAreReadByKey() {
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getNote(SessionNoteManifest.NOTE)).thenReturn("givenName\ngivenName-verified-level\nmissing");
+        when(userSession.getNote(PREFIX + "givenName")).thenReturn("Erika");
+        when(userSession.getNote(PREFIX + "givenName-verified-level")).thenReturn(AuthnLevel.STORK4.getFullname());
+        ProtocolMapperModel mappingModel = createMappingModel();
+        mappingModel.getConfig().put(BundIdProtocolMapper.MANIFEST_ONLY, "true");
+
+        IDToken token = new IDToken();
+        new BundIdProtocolMapper().transformIDToken(token, mappingModel, null, userSession, null);
+
+        verify(userSession, never()).getNotes();
+        assertEquals(
+                Map.of("givenName", "Erika", "givenName-verified-level", AuthnLevel.STORK4.getFullname()),
+                token.getOtherClaims());
+    }
+
+    @Test
+    void notesOutsideTheManifestAreMappedByDefault() {
+        Map<String, String> notes = new HashMap<>();
+        notes.put(SessionNoteManifest.NOTE, "#1\ngivenName");
+        notes.put(PREFIX + "givenName", "Erika");
+        notes.put(PREFIX + "hardcoded", "value");
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getId()).thenReturn("user-session-id");
+        when(userSession.getNotes()).thenReturn(notes);
+
+        IDToken token = mapIdToken(userSession);
+
+        assertEquals(Map.of("givenName", "Erika", "hardcoded", "value"), token.getOtherClaims());
+    }
+
+    @Test
+    void sessionsWithoutManifestAreScanned() {
+        Map<String, String> notes = new HashMap<>();
+        notes.put(PREFIX + "givenName", "Erika");
+        notes.put("ba.excluded", "value");
+        notes.put("other", "value");
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getNotes()).thenReturn(notes);
+
+        IDToken token = mapIdToken(userSession);
+
+        assertEquals(Map.of("givenName", "Erika"), token.getOtherClaims());
+    }
+
+    @Test
+    void nestedFormatGroupsValuesAndLevels() throws Exception {
+        Map<String, String> notes = new HashMap<>();
+        notes.put(PREFIX + "givenName", "Erika");
+        notes.put(PREFIX + "givenName-verified-level", AuthnLevel.STORK4.getFullname());
+        notes.put(PREFIX + "familyName", "Mustermann");
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getNotes()).thenReturn(notes);
+        ProtocolMapperModel mappingModel = createMappingModel();
+        mappingModel.getConfig().put(BundIdProtocolMapper.CLAIM_FORMAT, BundIdProtocolMapper.CLAIM_FORMAT_NESTED);
+        mappingModel.getConfig().put(OIDCAttributeMapperHelper.JSON_TYPE, "String");
+
+        IDToken nested = new IDToken();
+        new BundIdProtocolMapper().transformIDToken(nested, mappingModel, null, userSession, null);
+
+        assertEquals(
+                Map.of(
+                        BundIdProtocolMapper.DEFAULT_NESTED_CLAIM_NAME,
+                        Map.of(
+                                "givenName", Map.of("value", "Erika", "level", 4),
+                                "familyName", Map.of("value", "Mustermann"))),
+                nested.getOtherClaims());
+        IDToken flat = mapIdToken(userSession);
+        assertTrue(JsonSerialization.writeValueAsString(nested).length()
+                < JsonSerialization.writeValueAsString(flat).length());
+    }
+
+    @Test
+    void claimsAreReusedUntilTheManifestChanges() {
+        BundIdProtocolMapper mapper = new BundIdProtocolMapper();
+        ProtocolMapperModel mappingModel = createMappingModel();
+        mappingModel.getConfig().put(BundIdProtocolMapper.MANIFEST_ONLY, "true");
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getId()).thenReturn("user-session-id");
+        when(userSession.getNote(SessionNoteManifest.NOTE)).thenReturn("#1\ngivenName");
+        when(userSession.getNote(PREFIX + "givenName")).thenReturn("Erika");
+
+        mapper.transformIDToken(new IDToken(), mappingModel, null, userSession, null);
+        IDToken refreshed = new IDToken();
+        mapper.transformIDToken(refreshed, mappingModel, null, userSession, null);
+
+        verify(userSession, times(1)).getNote(PREFIX + "givenName");
+        assertEquals(Map.of("givenName", "Erika"), refreshed.getOtherClaims());
+
+        when(userSession.getNote(SessionNoteManifest.NOTE)).thenReturn("#2\ngivenName");
+        when(userSession.getNote(PREFIX + "givenName")).thenReturn("Max");
+        IDToken updated = new IDToken();
+        mapper.transformIDToken(updated, mappingModel, null, userSession, null);
+
+        assertEquals(Map.of("givenName", "Max"), updated.getOtherClaims());
+    }
+
+    @Test
+    void mappingModelIsNotModified() {
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getNotes()).thenReturn(Map.of(PREFIX + "givenName", "Erika"));
+        ProtocolMapperModel mappingModel = createMappingModel();
+        Map<String, String> config = new HashMap<>(mappingModel.getConfig());
+
+        new BundIdProtocolMapper().transformIDToken(new IDToken(), mappingModel, null, userSession, null);
+
+        assertEquals(config, mappingModel.getConfig());
+    }
+
+    @Test
+    void concurrentTokensDoNotShareClaimNames() throws Exception {
+        BundIdProtocolMapper mapper = new BundIdProtocolMapper();
+        ProtocolMapperModel mappingModel = createMappingModel();
+        int threads = 16;
+        int tokensPerThread = 2_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    int mismatches = 0;
+                    for (int i = 0; i < tokensPerThread; i++) {
+                        Map<String, String> notes = new HashMap<>();
+                        Map<String, Object> expected = new HashMap<>();
+                        for (int c = 0; c < 5; c++) {
+                            String name = "claim" + ((thread + i + c) % 50);
+                            String value = thread + "-" + i + "-" + name;
+                            notes.put(PREFIX + name, value);
+                            expected.put(name, value);
+                        }
+                        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+                        when(userSession.getNotes()).thenReturn(notes);
+
+                        IDToken token = new IDToken();
+                        mapper.transformIDToken(token, mappingModel, null, userSession, null);
+                        if (!expected.equals(token.getOtherClaims())) {
+                            mismatches++;
+                        }
+                    }
+                    return mismatches;
+                }));
+            }
+            start.countDown();
+
+            for (Future<Integer> result : results) {
+                assertEquals(0, result.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertNull(mappingModel.getConfig().get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void claimsAreTracedWithTheSessionsTracingProvider() {
+        Span span = Mockito.mock(Span.class);
+        TracingProvider tracing = Mockito.mock(TracingProvider.class);
+        doAnswer(invocation -> {
+                    invocation.getArgument(2, Consumer.class).accept(span);
+                    return null;
+                })
+                .when(tracing)
+                .trace(eq(BundIdProtocolMapper.class), eq("setClaim"), any(Consumer.class));
+        KeycloakSession session = Mockito.mock(KeycloakSession.class);
+        when(session.getProvider(TracingProvider.class)).thenReturn(tracing);
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getNotes()).thenReturn(Map.of(PREFIX + "givenName", "Erika", PREFIX + "familyName", "Gabler"));
+
+        KeycloakSessionUtil.setKeycloakSession(session);
+        try {
+            IDToken token = mapIdToken(userSession);
+
+            assertEquals("Erika", token.getOtherClaims().get("givenName"));
+            verify(span).setAttribute(BundIdTracing.NOTE_COUNT, 2L);
+            verify(span).setAttribute(BundIdTracing.CLAIM_FORMAT, BundIdProtocolMapper.CLAIM_FORMAT_FLAT);
+        } finally {
+            KeycloakSessionUtil.setKeycloakSession(null);
+        }
+    }
+
+    @Test
+    void cachedClaimsExpireWithTheIdleTimeoutOfTheRealm() {
+        BundIdProtocolMapper mapper = new BundIdProtocolMapper();
+        ProtocolMapperModel mappingModel = createMappingModel();
+        mappingModel.getConfig().put(BundIdProtocolMapper.MANIFEST_ONLY, "true");
+        RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getSsoSessionIdleTimeout()).thenReturn(60);
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getId()).thenReturn("user-session-id");
+        when(userSession.getRealm()).thenReturn(realm);
+        when(userSession.getNote(SessionNoteManifest.NOTE)).thenReturn("#1\ngivenName");
+        when(userSession.getNote(PREFIX + "givenName")).thenReturn("Erika");
+
+        mapper.transformIDToken(new IDToken(), mappingModel, null, userSession, null);
+        mapper.transformIDToken(new IDToken(), mappingModel, null, userSession, null);
+        verify(userSession, times(1)).getNote(PREFIX + "givenName");
+
+        Time.setOffset(61);
+        try {
+            mapper.transformIDToken(new IDToken(), mappingModel, null, userSession, null);
+        } finally {
+            Time.setOffset(0);
+        }
+        verify(userSession, times(2)).getNote(PREFIX + "givenName");
+    }
+
+    @Test
+    void nullConfigValuesAreTolerated() {
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getNotes()).thenReturn(Map.of(PREFIX + "givenName", "Erika"));
+        ProtocolMapperModel mappingModel = createMappingModel();
+        mappingModel.getConfig().put(OIDCAttributeMapperHelper.JSON_TYPE, null);
+
+        IDToken token = new IDToken();
+        new BundIdProtocolMapper().transformIDToken(token, mappingModel, null, userSession, null);
+
+        assertEquals(Map.of("givenName", "Erika"), token.getOtherClaims());
+    }
+
+    private static IDToken mapIdToken(UserSessionModel userSession) {
+        IDToken token = new IDToken();
+        new BundIdProtocolMapper().transformIDToken(token, createMappingModel(), null, userSession, null);
+        return token;
+    }
+
+    private static ProtocolMapperModel createMappingModel() {
+        ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        mappingModel.setId("bundid-protocol-mapper");
+        mappingModel.setConfig(new HashMap<>());
+        mappingModel.getConfig().put(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, "true");
+        return mappingModel;
+    }
+}
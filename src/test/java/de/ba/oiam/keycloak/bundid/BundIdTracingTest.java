@@ -0,0 +1,246 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.when;
+
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequest;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.Tracer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.dom.saml.v2.protocol.AuthnRequestType;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.keycloak.tracing.TracingProvider;
+import org.keycloak.utils.KeycloakSessionUtil;
+import org.mockito.Answers;
+import org.mockito.Mockito;
+
+class BundIdTracingTest {
+    // Keycloak names spans after the simple class name and the span name
+    private static final String LOGIN_REQUEST = "SamlAuthenticationPreprocessorImpl.beforeSendingLoginRequest";
+    private static final String UPDATE_REQUEST = "SamlAuthnRequestUpdater.updateRequest";
+
+    private final RecordingTracingProvider tracing = new RecordingTracingProvider();
+    private final KeycloakSession session = Mockito.mock(KeycloakSession.class, Answers.RETURNS_DEEP_STUBS);
+
+    @AfterEach
+    void unbindSession() {
+        KeycloakSessionUtil.setKeycloakSession(null);
+    }
+
+    @Test
+    void loginRequestSpansAreEndedOnUncachedPath() {
+        SamlAuthenticationPreprocessorImpl underTest =
+                createPreprocessor(0, false, new BundIdUserSessionAttributeMapper());
+
+        underTest.beforeSendingLoginRequest(createBundIdRequest(), createAuthSession());
+
+        assertEquals(List.of(LOGIN_REQUEST, UPDATE_REQUEST, UPDATE_REQUEST), tracing.started);
+        assertEquals(0, tracing.open);
+    }
+
+    @Test
+    void loginRequestSpansAreEndedOnCachedPath() {
+        SamlAuthenticationPreprocessorImpl underTest =
+                createPreprocessor(60, false, new BundIdUserSessionAttributeMapper());
+        AuthenticationSessionModel authSession = createAuthSession();
+
+        underTest.beforeSendingLoginRequest(createBundIdRequest(), authSession);
+        underTest.beforeSendingLoginRequest(createBundIdRequest(), authSession);
+
+        // The mappers only contribute to the cached template once
+        assertEquals(List.of(LOGIN_REQUEST, UPDATE_REQUEST, UPDATE_REQUEST, LOGIN_REQUEST), tracing.started);
+        assertEquals(0, tracing.open);
+    }
+
+    @Test
+    void loginRequestSpansAreEndedOnDeltaPath() {
+        SamlAuthenticationPreprocessorImpl underTest =
+                createPreprocessor(60, true, new BundIdUserSessionAttributeMapper());
+        AuthenticationSessionModel authSession = createAuthSession();
+        RootAuthenticationSessionModel rootSession = Mockito.mock(RootAuthenticationSessionModel.class);
+        when(rootSession.getId()).thenReturn("user-session-id");
+        when(authSession.getParentSession()).thenReturn(rootSession);
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getId()).thenReturn("user-session-id");
+        when(session.sessions().getUserSession(authSession.getRealm(), "user-session-id"))
+                .thenReturn(userSession);
+
+        underTest.beforeSendingLoginRequest(createBundIdRequest(), authSession);
+
+        assertEquals(List.of(LOGIN_REQUEST, UPDATE_REQUEST, UPDATE_REQUEST), tracing.started);
+        assertEquals(0, tracing.open);
+    }
+
+    @Test
+    void loginRequestSpansAreEndedOnError() {
+        BundIdUserSessionAttributeMapper mapper = Mockito.spy(new BundIdUserSessionAttributeMapper());
+        IllegalStateException failure = new IllegalStateException("broken mapper");
+        doThrow(failure)
+                .when(mapper)
+                .updateRequest(any(IdentityProviderMapperModel.class), any(AuthenticationRequest.class));
+        SamlAuthenticationPreprocessorImpl underTest = createPreprocessor(0, false, mapper);
+
+        assertThrows(
+                IllegalStateException.class,
+                () -> underTest.beforeSendingLoginRequest(createBundIdRequest(), createAuthSession()));
+
+        assertEquals(List.of(LOGIN_REQUEST, UPDATE_REQUEST), tracing.started);
+        assertEquals(0, tracing.open);
+        // Recorded by the mapper's span and the enclosing one
+        assertEquals(2, tracing.errors.size());
+        assertTrue(tracing.errors.stream().allMatch(error -> error == failure));
+    }
+
+    private SamlAuthenticationPreprocessorImpl createPreprocessor(
+            long extensionTemplateTtl, boolean attributeDelta, BundIdUserSessionAttributeMapper mapper) {
+        SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+        Config.Scope config = Mockito.mock(Config.Scope.class);
+        when(config.get("activeForIdp", "bundid")).thenReturn("bundid");
+        when(config.getLong(eq("extensionTemplateTtl"), any())).thenReturn(extensionTemplateTtl);
+        when(config.getBoolean("attributeDelta", false)).thenReturn(attributeDelta);
+        underTest.init(config);
+        KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class);
+        when(sessionFactory.getProviderFactory(eq(IdentityProviderMapper.class), any()))
+                .thenReturn(mapper);
+        underTest.postInit(sessionFactory);
+
+        doReturn(tracing).when(session).getProvider(TracingProvider.class);
+        KeycloakSessionUtil.setKeycloakSession(session);
+        return underTest;
+    }
+
+    private static AuthenticationSessionModel createAuthSession() {
+        AuthenticationSessionModel authSession =
+                Mockito.mock(AuthenticationSessionModel.class, Answers.RETURNS_DEEP_STUBS);
+        RealmModel realm = authSession.getRealm();
+        when(realm.getId()).thenReturn("realm");
+        when(realm.getIdentityProviderMappersByAliasStream("bundid"))
+                .thenAnswer(invocation -> Stream.of(createMapperModel("oid1"), createMapperModel("oid2")));
+        return authSession;
+    }
+
+    private static AuthnRequestType createBundIdRequest() {
+        AuthnRequestType authnRequest = new AuthnRequestType("myId", null);
+        authnRequest.setAssertionConsumerServiceURL(URI.create("http://localhost:8081/bla/broker/bundid/endpoint"));
+        return authnRequest;
+    }
+
+    private static IdentityProviderMapperModel createMapperModel(String oid) {
+        IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+        mapperModel.setIdentityProviderMapper(BundIdUserSessionAttributeMapper.PROVIDER_ID);
+        mapperModel.setConfig(new HashMap<>());
+        mapperModel.getConfig().put(BundIdUserSessionAttributeMapper.ATTRIBUTE_OID, oid);
+        mapperModel.getConfig().put(BundIdUserSessionAttributeMapper.SESSION_ATTRIBUTE, "attribute" + oid);
+        return mapperModel;
+    }
+
+    // Records started spans like Keycloak's provider: one span per trace call, ended even if the call fails
+    private static class RecordingTracingProvider implements TracingProvider {
+        private final List<String> started = new ArrayList<>();
+        private final List<Throwable> errors = new ArrayList<>();
+        private int open;
+
+        @Override
+        public void trace(String tracerName, String spanName, Consumer<Span> execution) {
+            trace(tracerName, spanName, span -> {
+                execution.accept(span);
+                return null;
+            });
+        }
+
+        @Override
+        public <T> T trace(String tracerName, String spanName, Function<Span, T> execution) {
+            Span span = startSpan(tracerName, spanName);
+            try {
+                return execution.apply(span);
+            } catch (RuntimeException e) {
+                error(e);
+                throw e;
+            } finally {
+                endSpan();
+            }
+        }
+
+        @Override
+        public Span startSpan(String tracerName, String spanName) {
+            started.add(spanName);
+            open++;
+            Span span = Mockito.mock(Span.class, Answers.RETURNS_SELF);
+            when(span.isRecording()).thenReturn(true);
+            return span;
+        }
+
+        @Override
+        public Span startSpan(SpanBuilder builder) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void endSpan() {
+            open--;
+        }
+
+        @Override
+        public void error(Throwable exception) {
+            errors.add(exception);
+        }
+
+        @Override
+        public Span getCurrentSpan() {
+            return Span.getInvalid();
+        }
+
+        @Override
+        public Tracer getTracer(String name, String scopeVersion) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean validateAllSpansEnded() {
+            return open == 0;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -17,9 +17,18 @@
 package de.ba.oiam.keycloak.bundid;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
 
 import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequest;
 import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import de.ba.oiam.keycloak.bundid.mapper.CompactSessionNote;
+import de.ba.oiam.keycloak.bundid.mapper.ExistingUserSession;
+import de.ba.oiam.keycloak.bundid.mapper.SessionNoteManifest;
 import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
 import jakarta.xml.bind.Unmarshaller;
@@ -36,11 +45,19 @@ import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
 import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.dom.saml.v2.protocol.AuthnRequestType;
 import org.keycloak.models.ClientModel;
+import org.keycloak.models.FederatedIdentityModel;
 import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderMapperSyncMode;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
 import org.keycloak.sessions.AuthenticationSessionModel;
 import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.mockito.Answers;
+import org.mockito.Mockito;
 import org.w3c.dom.Node;
 
 public class BundIdUserSessionMapperTest {
@@ -200,16 +217,270 @@ public class BundIdUserSessionMapperTest {
                         .size());
     }
 
+    @Test
+    void unchangedNotesAreNotWrittenAgain() throws DatatypeConfigurationException {
+        AssertionType samlAssertion =
+                new AssertionType("response", DatatypeFactory.newInstance().newXMLGregorianCalendar());
+        AttributeStatementType attributeStatement = new AttributeStatementType();
+        AttributeType attribute1 = new AttributeType("attrName");
+        attribute1.getOtherAttributes().put(BundIdUserSessionAttributeMapper.TRUST_LEVEL_QNAME, "SUBSTANTIELL");
+        attribute1.addAttributeValue("testValue");
+        AttributeType attribute2 = new AttributeType("attrName2");
+        attribute2.addAttributeValue("testValue2");
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute1));
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute2));
+        samlAssertion.addStatement(attributeStatement);
+        IdentityProviderModel idpConfig = new IdentityProviderModel();
+        idpConfig.setAlias("bundid");
+        idpConfig.setSyncMode(IdentityProviderSyncMode.FORCE);
+        BrokeredIdentityContext context = new BrokeredIdentityContext("test", idpConfig);
+        context.getContextData().put(SAMLEndpoint.SAML_ASSERTION, samlAssertion);
+        TestAuthenticationSessionModel authenticationSession = new TestAuthenticationSessionModel();
+        context.setAuthenticationSession(authenticationSession);
+
+        IdentityProviderMapperModel mapperModel1 = createSessionMapperModel("attrName", "targetAttribute");
+        IdentityProviderMapperModel mapperModel2 = createSessionMapperModel("attrName2", "targetAttribute2");
+        RealmModel realm = Mockito.mock(RealmModel.class);
+
+        BundIdUserSessionAttributeMapper mapper = new BundIdUserSessionAttributeMapper();
+        KeycloakSession session = createSession();
+
+        mapper.preprocessFederatedIdentity(session, realm, mapperModel1, context);
+        // Two notes and the manifest
+        assertEquals(3, authenticationSession.userSessionNoteWrites);
+        assertEquals(1, authenticationSession.userSessionNoteReads);
+        mapper.preprocessFederatedIdentity(session, realm, mapperModel2, context);
+        assertEquals(5, authenticationSession.userSessionNoteWrites);
+        // The notes are read once per login
+        assertEquals(1, authenticationSession.userSessionNoteReads);
+        assertEquals(
+                Set.of("targetAttribute", "targetAttribute-verified-level", "targetAttribute2"),
+                SessionNoteManifest.parse(
+                        authenticationSession.getUserSessionNotes().get(SessionNoteManifest.NOTE)));
+        assertEquals(
+                AuthnLevel.STORK3.getFullname(),
+                authenticationSession
+                        .getUserSessionNotes()
+                        .get(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX
+                                + "targetAttribute-verified-level"));
+        assertEquals(
+                "testValue2",
+                authenticationSession
+                        .getUserSessionNotes()
+                        .get(BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX + "targetAttribute2"));
+
+        // Unchanged values are not written again
+        int reads = authenticationSession.userSessionNoteReads;
+        mapper.updateBrokeredUser(session, realm, null, mapperModel1, context);
+        mapper.updateBrokeredUser(session, realm, null, mapperModel2, context);
+        assertEquals(5, authenticationSession.userSessionNoteWrites);
+        assertEquals(reads, authenticationSession.userSessionNoteReads);
+    }
+
+    @Test
+    void compactModeWritesOneNote() throws DatatypeConfigurationException {
+        AssertionType samlAssertion =
+                new AssertionType("response", DatatypeFactory.newInstance().newXMLGregorianCalendar());
+        AttributeStatementType attributeStatement = new AttributeStatementType();
+        AttributeType attribute1 = new AttributeType("attrName");
+        attribute1.getOtherAttributes().put(BundIdUserSessionAttributeMapper.TRUST_LEVEL_QNAME, "SUBSTANTIELL");
+        attribute1.addAttributeValue("testValue");
+        AttributeType attribute2 = new AttributeType("attrName2");
+        attribute2.addAttributeValue("testValue2");
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute1));
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute2));
+        samlAssertion.addStatement(attributeStatement);
+        IdentityProviderModel idpConfig = new IdentityProviderModel();
+        idpConfig.setAlias("bundid");
+        BrokeredIdentityContext context = new BrokeredIdentityContext("test", idpConfig);
+        context.getContextData().put(SAMLEndpoint.SAML_ASSERTION, samlAssertion);
+        TestAuthenticationSessionModel authenticationSession = new TestAuthenticationSessionModel();
+        context.setAuthenticationSession(authenticationSession);
+
+        IdentityProviderMapperModel mapperModel1 = createSessionMapperModel("attrName", "targetAttribute");
+        mapperModel1.getConfig().put(BundIdUserSessionAttributeMapper.SESSION_NOTE_COMPACT, "true");
+        IdentityProviderMapperModel mapperModel2 = createSessionMapperModel("attrName2", "targetAttribute2");
+        mapperModel2.getConfig().put(BundIdUserSessionAttributeMapper.SESSION_NOTE_COMPACT, "true");
+        RealmModel realm = Mockito.mock(RealmModel.class);
+
+        BundIdUserSessionAttributeMapper mapper = new BundIdUserSessionAttributeMapper();
+        KeycloakSession session = createSession();
+        mapper.preprocessFederatedIdentity(session, realm, mapperModel1, context);
+        mapper.preprocessFederatedIdentity(session, realm, mapperModel2, context);
+
+        // The manifest only carries the revision
+        assertEquals(
+                Set.of(CompactSessionNote.NOTE, SessionNoteManifest.NOTE),
+                authenticationSession.getUserSessionNotes().keySet());
+        assertEquals(
+                Set.of(),
+                SessionNoteManifest.parse(
+                        authenticationSession.getUserSessionNotes().get(SessionNoteManifest.NOTE)));
+        assertEquals(
+                Map.of(
+                        "targetAttribute",
+                        new CompactSessionNote.Attribute("testValue", AuthnLevel.STORK3),
+                        "targetAttribute2",
+                        new CompactSessionNote.Attribute("testValue2", null)),
+                CompactSessionNote.decode(
+                        authenticationSession.getUserSessionNotes().get(CompactSessionNote.NOTE)));
+    }
+
+    @Test
+    void stepUpMergesCompactNoteOfTheUserSession() throws DatatypeConfigurationException {
+        TestAuthenticationSessionModel authenticationSession = new TestAuthenticationSessionModel();
+        BrokeredIdentityContext context = createStepUpContext(authenticationSession);
+        RealmModel realm = Mockito.mock(RealmModel.class);
+        String existingManifest = "#1";
+        KeycloakSession session = createSession();
+        UserSessionModel userSession = mockDeltaUserSession(session, realm, authenticationSession, "test");
+        when(userSession.getNote(SessionNoteManifest.NOTE)).thenReturn(existingManifest);
+
+        mapStepUp(session, realm, context);
+
+        assertEquals(
+                Map.of(
+                        "targetAttribute",
+                        new CompactSessionNote.Attribute("oldValue", AuthnLevel.STORK3),
+                        "targetAttribute2",
+                        new CompactSessionNote.Attribute("newValue", AuthnLevel.STORK4)),
+                CompactSessionNote.decode(
+                        authenticationSession.getUserSessionNotes().get(CompactSessionNote.NOTE)));
+        assertNotEquals(
+                existingManifest, authenticationSession.getUserSessionNotes().get(SessionNoteManifest.NOTE));
+        assertNull(authenticationSession.getAuthNote(ExistingUserSession.DELTA_NOTE));
+    }
+
+    @Test
+    void stepUpOfAnotherIdentityDoesNotMergeTheUserSession() throws DatatypeConfigurationException {
+        TestAuthenticationSessionModel authenticationSession = new TestAuthenticationSessionModel();
+        BrokeredIdentityContext context = createStepUpContext(authenticationSession);
+        RealmModel realm = Mockito.mock(RealmModel.class);
+        KeycloakSession session = createSession();
+        mockDeltaUserSession(session, realm, authenticationSession, "other");
+
+        mapStepUp(session, realm, context);
+
+        assertEquals(
+                Map.of("targetAttribute2", new CompactSessionNote.Attribute("newValue", AuthnLevel.STORK4)),
+                CompactSessionNote.decode(
+                        authenticationSession.getUserSessionNotes().get(CompactSessionNote.NOTE)));
+    }
+
+    private static BrokeredIdentityContext createStepUpContext(TestAuthenticationSessionModel authenticationSession)
+            throws DatatypeConfigurationException {
+        AssertionType samlAssertion =
+                new AssertionType("response", DatatypeFactory.newInstance().newXMLGregorianCalendar());
+        AttributeStatementType attributeStatement = new AttributeStatementType();
+        AttributeType attribute = new AttributeType("attrName2");
+        attribute.getOtherAttributes().put(BundIdUserSessionAttributeMapper.TRUST_LEVEL_QNAME, "HOCH");
+        attribute.addAttributeValue("newValue");
+        attributeStatement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute));
+        samlAssertion.addStatement(attributeStatement);
+        IdentityProviderModel idpConfig = new IdentityProviderModel();
+        idpConfig.setAlias("bundid");
+        BrokeredIdentityContext context = new BrokeredIdentityContext("test", idpConfig);
+        context.getContextData().put(SAMLEndpoint.SAML_ASSERTION, samlAssertion);
+        context.setAuthenticationSession(authenticationSession);
+        return context;
+    }
+
+    // User session continued by a delta login, linked to the BundID identity federatedUserId
+    private static UserSessionModel mockDeltaUserSession(
+            KeycloakSession session,
+            RealmModel realm,
+            TestAuthenticationSessionModel authenticationSession,
+            String federatedUserId) {
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getId()).thenReturn("user-session-id");
+        when(userSession.getNote(CompactSessionNote.NOTE))
+                .thenReturn(CompactSessionNote.encode(Map.of(
+                        "targetAttribute",
+                        new CompactSessionNote.Attribute("oldValue", AuthnLevel.STORK3),
+                        "targetAttribute2",
+                        new CompactSessionNote.Attribute("oldValue2", AuthnLevel.STORK3))));
+        UserModel user = Mockito.mock(UserModel.class);
+        when(userSession.getUser()).thenReturn(user);
+        when(session.sessions().getUserSession(realm, "user-session-id")).thenReturn(userSession);
+        when(session.users().getFederatedIdentity(realm, user, "bundid"))
+                .thenReturn(new FederatedIdentityModel("bundid", federatedUserId, federatedUserId));
+        // Done by the preprocessor when it requests the attributes missing in the user session
+        ExistingUserSession.markDelta(authenticationSession, userSession);
+        return userSession;
+    }
+
+    private static void mapStepUp(KeycloakSession session, RealmModel realm, BrokeredIdentityContext context) {
+        IdentityProviderMapperModel mapperModel1 = createSessionMapperModel("attrName", "targetAttribute");
+        mapperModel1.getConfig().put(BundIdUserSessionAttributeMapper.SESSION_NOTE_COMPACT, "true");
+        IdentityProviderMapperModel mapperModel2 = createSessionMapperModel("attrName2", "targetAttribute2");
+        mapperModel2.getConfig().put(BundIdUserSessionAttributeMapper.SESSION_NOTE_COMPACT, "true");
+        BundIdUserSessionAttributeMapper mapper = new BundIdUserSessionAttributeMapper();
+
+        mapper.preprocessFederatedIdentity(session, realm, mapperModel1, context);
+        mapper.preprocessFederatedIdentity(session, realm, mapperModel2, context);
+    }
+
+    @Test
+    void compiledConfigFollowsConfigChanges() {
+        IdentityProviderMapperModel mapperModel = createSessionMapperModel("attrName", "targetAttribute");
+        mapperModel.setId("mapper-id");
+        mapperModel.getConfig().put(BundIdUserSessionAttributeMapper.ATTRIBUTE_OID, "oid1");
+        BundIdUserSessionAttributeMapper mapper = new BundIdUserSessionAttributeMapper();
+
+        AuthenticationRequest first = new AuthenticationRequest();
+        mapper.updateRequest(mapperModel, first);
+        // Keycloak hands out a new config once the mapper is updated
+        mapperModel.setConfig(new HashMap<>(mapperModel.getConfig()));
+        mapperModel.getConfig().put(BundIdUserSessionAttributeMapper.ATTRIBUTE_OID, "oid2");
+        AuthenticationRequest second = new AuthenticationRequest();
+        mapper.updateRequest(mapperModel, second);
+
+        assertEquals(
+                "oid1",
+                first.getRequestedAttributes().getRequestedAttributes().get(0).getName());
+        assertEquals(
+                "oid2",
+                second.getRequestedAttributes().getRequestedAttributes().get(0).getName());
+    }
+
+    private static IdentityProviderMapperModel createSessionMapperModel(String attributeName, String sessionAttribute) {
+        IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+        mapperModel.setIdentityProviderMapper(BundIdUserSessionAttributeMapper.PROVIDER_ID);
+        mapperModel.setConfig(new HashMap<>());
+        mapperModel.setSyncMode(IdentityProviderMapperSyncMode.INHERIT);
+        mapperModel.getConfig().put(BundIdUserSessionAttributeMapper.SESSION_ATTRIBUTE, sessionAttribute);
+        mapperModel.getConfig().put(BundIdUserSessionAttributeMapper.ATTRIBUTE_NAME, attributeName);
+        return mapperModel;
+    }
+
+    private static KeycloakSession createSession() {
+        Map<String, Object> attributes = new HashMap<>();
+        KeycloakSession session = Mockito.mock(KeycloakSession.class, Answers.RETURNS_DEEP_STUBS);
+        when(session.getAttribute(anyString(), any()))
+                .thenAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(session)
+                .setAttribute(anyString(), any());
+        when(session.removeAttribute(anyString()))
+                .thenAnswer(invocation -> attributes.remove(invocation.<String>getArgument(0)));
+        return session;
+    }
+
     private static class TestAuthenticationSessionModel implements AuthenticationSessionModel {
         private Map<String, String> userSessionNotes = new HashMap<>();
+        private Map<String, String> authNotes = new HashMap<>();
+        private int userSessionNoteWrites;
+        private int userSessionNoteReads;
 
         @Override
         public void setUserSessionNote(String name, String value) {
             userSessionNotes.put(name, value);
+            userSessionNoteWrites++;
         }
 
         @Override
         public Map<String, String> getUserSessionNotes() {
+            userSessionNoteReads++;
             return userSessionNotes;
         }
 
@@ -264,14 +535,18 @@ public class BundIdUserSessionMapperTest {
 
         @Override
         public String getAuthNote(String name) {
-            return null;
+            return authNotes.get(name);
         }
 
         @Override
-        public void setAuthNote(String name, String value) {}
+        public void setAuthNote(String name, String value) {
+            authNotes.put(name, value);
+        }
 
         @Override
-        public void removeAuthNote(String name) {}
+        public void removeAuthNote(String name) {
+            authNotes.remove(name);
+        }
 
         @Override
         public void clearAuthNotes() {}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+import de.ba.oiam.keycloak.bundid.mapper.BundIdProtocolMapper;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import de.ba.oiam.keycloak.bundid.mapper.CompactSessionNote;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.representations.IDToken;
+import org.mockito.Mockito;
+
+class CompactSessionNoteTest {
+    private static final String PREFIX = BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX;
+
+    @Test
+    void roundTrip() {
+        Map<String, CompactSessionNote.Attribute> attributes = new LinkedHashMap<>();
+        attributes.put("givenName", new CompactSessionNote.Attribute("Erika", AuthnLevel.STORK4));
+        attributes.put("address", new CompactSessionNote.Attribute("12:34 Straße 5;\n6", null));
+        attributes.put("empty", new CompactSessionNote.Attribute("", AuthnLevel.STORK1));
+
+        String note = CompactSessionNote.encode(attributes);
+
+        assertEquals(attributes, CompactSessionNote.decode(note));
+        assertEquals(Map.of(), CompactSessionNote.decode(null));
+        assertEquals(Map.of(), CompactSessionNote.decode("9whatever"));
+        assertEquals(Map.of(), CompactSessionNote.decode("14:name"));
+    }
+
+    @Test
+    void compactNoteIsLessThanHalfOfSeparateNotesForTwentyAttributes() {
+        Map<String, String> separateNotes = new LinkedHashMap<>();
+        Map<String, CompactSessionNote.Attribute> attributes = new LinkedHashMap<>();
+        for (Map.Entry<String, String> attribute : typicalLogin().entrySet()) {
+            separateNotes.put(PREFIX + attribute.getKey(), attribute.getValue());
+            separateNotes.put(
+                    PREFIX + attribute.getKey() + BundIdUserSessionAttributeMapper.VERIFIED_LEVEL_SUFFIX,
+                    AuthnLevel.STORK3.getFullname());
+            attributes.put(
+                    attribute.getKey(), new CompactSessionNote.Attribute(attribute.getValue(), AuthnLevel.STORK3));
+        }
+        String compactNote = CompactSessionNote.encode(attributes);
+
+        int separateSize = separateNotes.entrySet().stream()
+                .mapToInt(e -> size(e.getKey()) + size(e.getValue()))
+                .sum();
+        int compactSize = size(CompactSessionNote.NOTE) + size(compactNote);
+
+        // 20 attributes: 1794 bytes in 40 notes vs. 504 bytes in one note
+        assertEquals(1794, separateSize);
+        assertEquals(504, compactSize);
+        assertTrue(compactSize * 2 < separateSize);
+    }
+
+    @Test
+    void protocolMapperMapsCompactAndSeparateNotes() {
+        Map<String, CompactSessionNote.Attribute> attributes = new LinkedHashMap<>();
+        attributes.put("givenName", new CompactSessionNote.Attribute("Erika", AuthnLevel.STORK4));
+        attributes.put("familyName", new CompactSessionNote.Attribute("Mustermann", null));
+        Map<String, String> notes = new HashMap<>();
+        notes.put(CompactSessionNote.NOTE, CompactSessionNote.encode(attributes));
+        notes.put(PREFIX + "birthDate", "1964-08-12");
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getNotes()).thenReturn(notes);
+        when(userSession.getNote(CompactSessionNote.NOTE)).thenReturn(notes.get(CompactSessionNote.NOTE));
+
+        ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        mappingModel.setConfig(new HashMap<>());
+        mappingModel.getConfig().put(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, "true");
+        IDToken token = new IDToken();
+        new BundIdProtocolMapper().transformIDToken(token, mappingModel, null, userSession, null);
+
+        assertEquals("Erika", token.getOtherClaims().get("givenName"));
+        assertEquals(
+                AuthnLevel.STORK4.getFullname(),
+                token.getOtherClaims().get("givenName" + BundIdUserSessionAttributeMapper.VERIFIED_LEVEL_SUFFIX));
+        assertEquals("Mustermann", token.getOtherClaims().get("familyName"));
+        assertEquals("1964-08-12", token.getOtherClaims().get("birthDate"));
+        assertEquals(4, token.getOtherClaims().size());
+    }
+
+    private static int size(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static Map<String, String> typicalLogin() {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("bPK2", "A1B2C3D4E5F6G7H8I9J0K1L2M3N4O5P6Q7R8S9T0U1V2W3X4Y5Z6");
+        attributes.put("givenName", "Erika");
+        attributes.put("familyName", "Mustermann");
+        attributes.put("birthName", "Gabler");
+        attributes.put("birthDate", "1964-08-12");
+        attributes.put("placeOfBirth", "Berlin");
+        attributes.put("nationality", "D");
+        attributes.put("title", "Dr.");
+        attributes.put("street", "Heidestraße 17");
+        attributes.put("postalCode", "51147");
+        attributes.put("locality", "Köln");
+        attributes.put("country", "D");
+        attributes.put("mail", "erika.mustermann@example.org");
+        attributes.put("telephoneNumber", "+49 221 12345678");
+        attributes.put("gender", "2");
+        attributes.put("documentType", "ID");
+        attributes.put("issuingState", "D");
+        attributes.put("assertionProvedBy", "eidas1");
+        attributes.put("communityId", "053150000000");
+        attributes.put("version", "2");
+        return attributes;
+    }
+}
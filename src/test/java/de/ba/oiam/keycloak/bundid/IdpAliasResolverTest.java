@@ -0,0 +1,63 @@
+/*
+ * Copyright 2024. IT-Systemhaus der Bundesagentur fuer Arbeit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ba.oiam.keycloak.bundid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.URI;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class IdpAliasResolverTest {
+    private static final Pattern LEGACY_PATTERN = Pattern.compile(".*/broker/(.+)/endpoint.*");
+
+    @Test
+    void resolvesAliasFromBrokerEndpoint() {
+        IdpAliasResolver underTest = new IdpAliasResolver();
+
+        assertEquals(
+                "bundid", underTest.resolve(URI.create("http://localhost:8081/realms/test/broker/bundid/endpoint")));
+        assertEquals(
+                "bundid",
+                underTest.resolve(URI.create("http://localhost:8081/realms/test/broker/bundid/endpoint/clients/x")));
+        assertNull(underTest.resolve(URI.create("http://localhost:8081/realms/test/protocol/saml")));
+        assertNull(underTest.resolve(URI.create("http://localhost:8081/realms/test/broker//endpoint")));
+    }
+
+    @Test
+    void behavesLikeLegacyPattern() {
+        List<String> paths = List.of(
+                "/realms/test/broker/bundid/endpoint",
+                "/broker/a/endpoint/broker/b/endpoint",
+                "/broker/a/b/endpoint",
+                "/broker//endpoint",
+                "/broker/x/endpointendpoint",
+                "/broker/endpoint",
+                "/broker/a/endpoint/broker/",
+                "/endpoint/broker/a",
+                "broker/a/endpoint",
+                "");
+
+        for (String path : paths) {
+            Matcher matcher = LEGACY_PATTERN.matcher(path);
+            assertEquals(matcher.matches() ? matcher.group(1) : null, IdpAliasResolver.extractAlias(path), path);
+        }
+    }
+}
@@ -17,17 +17,64 @@
 package de.ba.oiam.keycloak.bundid;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequest;
+import de.ba.oiam.keycloak.bundid.extension.model.AuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.DomAuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.JaxbAuthenticationRequestCodec;
+import de.ba.oiam.keycloak.bundid.extension.model.RequestedAttribute;
+import de.ba.oiam.keycloak.bundid.mapper.BundIdUserSessionAttributeMapper;
+import de.ba.oiam.keycloak.bundid.mapper.CompactSessionNote;
+import de.ba.oiam.keycloak.bundid.mapper.ExistingUserSession;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
+import org.keycloak.broker.provider.IdentityProviderMapper;
 import org.keycloak.dom.saml.v2.protocol.AuthnContextComparisonType;
 import org.keycloak.dom.saml.v2.protocol.AuthnRequestType;
+import org.keycloak.dom.saml.v2.protocol.NameIDPolicyType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
 import org.keycloak.models.Constants;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.provider.InvalidationHandler;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderEventListener;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.keycloak.utils.KeycloakSessionUtil;
 import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 class SamlAuthenticationPreprocessorTest {
@@ -69,4 +116,464 @@ class SamlAuthenticationPreprocessorTest {
         assertNull(expectedResult.getRequestedAuthnContext());
         assertNull(expectedResult.getExtensions());
     }
+
+    @Test
+    void allMappersAreWrittenIntoOneExtension() {
+        SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+        KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class);
+        when(sessionFactory.getProviderFactory(eq(IdentityProviderMapper.class), any()))
+                .thenReturn(new BundIdUserSessionAttributeMapper());
+        underTest.postInit(sessionFactory);
+
+        AuthnRequestType authnRequest = new AuthnRequestType("myId", null);
+        authnRequest.setAssertionConsumerServiceURL(URI.create("http://localhost:8081/bla/broker/bundid/endpoint"));
+
+        AuthenticationSessionModel clientSession =
+                Mockito.mock(AuthenticationSessionModel.class, Answers.RETURNS_DEEP_STUBS);
+        when(clientSession.getClientNote(Constants.REQUESTED_LEVEL_OF_AUTHENTICATION))
+                .thenReturn("4");
+        when(clientSession.getRealm().getIdentityProviderMappersByAliasStream("bundid"))
+                .thenReturn(Stream.of(createMapperModel("oid1"), createMapperModel("oid2")));
+
+        AuthnRequestType expectedResult = underTest.beforeSendingLoginRequest(authnRequest, clientSession);
+
+        assertEquals(1, expectedResult.getExtensions().getAny().size());
+        AuthenticationRequest extension = AuthenticationRequest.readExisting(expectedResult);
+        assertEquals(
+                List.of("oid1", "oid2"),
+                extension.getRequestedAttributes().getRequestedAttributes().stream()
+                        .map(RequestedAttribute::getName)
+                        .toList());
+    }
+
+    @Test
+    void legacyUpdatersAreCalledWithTheRequestOfEveryLogin() {
+        SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+        KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class);
+        when(sessionFactory.getProviderFactory(
+                        IdentityProviderMapper.class, BundIdUserSessionAttributeMapper.PROVIDER_ID))
+                .thenReturn(new BundIdUserSessionAttributeMapper());
+        when(sessionFactory.getProviderFactory(IdentityProviderMapper.class, LegacyNameIdPolicyMapper.PROVIDER_ID))
+                .thenReturn(new LegacyNameIdPolicyMapper());
+        underTest.postInit(sessionFactory);
+
+        AuthenticationSessionModel clientSession =
+                Mockito.mock(AuthenticationSessionModel.class, Answers.RETURNS_DEEP_STUBS);
+        RealmModel realm = clientSession.getRealm();
+        when(realm.getId()).thenReturn("realm");
+        IdentityProviderMapperModel legacyModel = new IdentityProviderMapperModel();
+        legacyModel.setIdentityProviderMapper(LegacyNameIdPolicyMapper.PROVIDER_ID);
+        when(realm.getIdentityProviderMappersByAliasStream("bundid"))
+                .thenAnswer(invocation -> Stream.of(createMapperModel("oid1"), legacyModel));
+
+        for (int login = 0; login < 2; login++) {
+            AuthnRequestType result = underTest.beforeSendingLoginRequest(createBundIdRequest(), clientSession);
+
+            assertEquals(
+                    JBossSAMLURIConstants.NAMEID_FORMAT_PERSISTENT.getUri(),
+                    result.getNameIDPolicy().getFormat());
+            assertEquals(
+                    List.of("oid1"),
+                    AuthenticationRequest.readExisting(result)
+                            .getRequestedAttributes()
+                            .getRequestedAttributes()
+                            .stream()
+                            .map(RequestedAttribute::getName)
+                            .toList());
+        }
+    }
+
+    @Test
+    void extensionTemplateIsReusedUntilIdentityProviderChanges() {
+        SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+        KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class);
+        when(sessionFactory.getProviderFactory(eq(IdentityProviderMapper.class), any()))
+                .thenReturn(new BundIdUserSessionAttributeMapper());
+        underTest.postInit(sessionFactory);
+        ArgumentCaptor<ProviderEventListener> listener = ArgumentCaptor.forClass(ProviderEventListener.class);
+        verify(sessionFactory).register(listener.capture());
+
+        AuthenticationSessionModel clientSession =
+                Mockito.mock(AuthenticationSessionModel.class, Answers.RETURNS_DEEP_STUBS);
+        RealmModel realm = clientSession.getRealm();
+        when(realm.getId()).thenReturn("realm");
+        when(realm.getIdentityProviderMappersByAliasStream("bundid"))
+                .thenAnswer(invocation -> Stream.of(createMapperModel("oid1")));
+
+        AuthnRequestType first = underTest.beforeSendingLoginRequest(createBundIdRequest(), clientSession);
+        AuthnRequestType second = underTest.beforeSendingLoginRequest(createBundIdRequest(), clientSession);
+
+        verify(realm, times(1)).getIdentityProviderMappersByAliasStream("bundid");
+        assertNotSame(
+                first.getExtensions().getAny().get(0),
+                second.getExtensions().getAny().get(0));
+        assertEquals(
+                "oid1",
+                AuthenticationRequest.readExisting(second)
+                        .getRequestedAttributes()
+                        .getRequestedAttributes()
+                        .get(0)
+                        .getName());
+
+        RealmModel.IdentityProviderUpdatedEvent event = Mockito.mock(RealmModel.IdentityProviderUpdatedEvent.class);
+        when(event.getRealm()).thenReturn(realm);
+        listener.getValue().onEvent(event);
+        underTest.beforeSendingLoginRequest(createBundIdRequest(), clientSession);
+
+        verify(realm, times(2)).getIdentityProviderMappersByAliasStream("bundid");
+    }
+
+    @Test
+    void updatersAreResolvedOnceAtPostInit() {
+        SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+        KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class);
+        when(sessionFactory.getProviderFactoriesStream(IdentityProviderMapper.class))
+                .thenAnswer(invocation -> Stream.of(new BundIdUserSessionAttributeMapper()));
+        underTest.postInit(sessionFactory);
+
+        AuthenticationSessionModel clientSession =
+                Mockito.mock(AuthenticationSessionModel.class, Answers.RETURNS_DEEP_STUBS);
+        when(clientSession.getRealm().getIdentityProviderMappersByAliasStream("bundid"))
+                .thenAnswer(invocation -> Stream.of(createMapperModel("oid1"), createMapperModel("oid2")));
+
+        AuthnRequestType result = underTest.beforeSendingLoginRequest(createBundIdRequest(), clientSession);
+
+        verify(sessionFactory, never()).getProviderFactory(eq(IdentityProviderMapper.class), any());
+        assertEquals(
+                2,
+                AuthenticationRequest.readExisting(result)
+                        .getRequestedAttributes()
+                        .getRequestedAttributes()
+                        .size());
+
+        underTest.invalidate(null, InvalidationHandler.ObjectType.PROVIDER_FACTORY);
+
+        verify(sessionFactory, times(2)).getProviderFactoriesStream(IdentityProviderMapper.class);
+    }
+
+    @Test
+    void prebuiltDisplayInformationReplacesExistingOne() {
+        SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+        Config.Scope config = Mockito.mock(Config.Scope.class);
+        when(config.get("activeForIdp", "bundid")).thenReturn("bundid");
+        when(config.get("onlineServiceId")).thenReturn("service");
+        when(config.get("organizationDisplayName")).thenReturn("organization");
+        underTest.init(config);
+        KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class);
+        when(sessionFactory.getProviderFactory(eq(IdentityProviderMapper.class), any()))
+                .thenReturn(new BundIdUserSessionAttributeMapper());
+        underTest.postInit(sessionFactory);
+
+        AuthenticationSessionModel clientSession =
+                Mockito.mock(AuthenticationSessionModel.class, Answers.RETURNS_DEEP_STUBS);
+        when(clientSession.getRealm().getIdentityProviderMappersByAliasStream("bundid"))
+                .thenAnswer(invocation -> Stream.of(createMapperModel("oid1")));
+
+        AuthnRequestType authnRequest = createBundIdRequest();
+        AuthenticationRequest existing = new AuthenticationRequest();
+        existing.setDisplayInformation(DisplayInformationFragments.create("other", null));
+        existing.addOrUpdate(authnRequest);
+
+        AuthnRequestType first = underTest.beforeSendingLoginRequest(authnRequest, clientSession);
+        AuthnRequestType second = underTest.beforeSendingLoginRequest(createBundIdRequest(), clientSession);
+
+        for (AuthnRequestType result : List.of(first, second)) {
+            assertEquals(1, result.getExtensions().getAny().size());
+            AuthenticationRequest extension = AuthenticationRequest.readExisting(result);
+            assertEquals(
+                    "service",
+                    extension
+                            .getDisplayInformation()
+                            .getVersion()
+                            .getOnlineServiceId()
+                            .getValue());
+            assertEquals(
+                    "organization",
+                    extension
+                            .getDisplayInformation()
+                            .getVersion()
+                            .getOrganizationDisplayName()
+                            .getValue());
+            assertEquals(
+                    1,
+                    extension.getRequestedAttributes().getRequestedAttributes().size());
+        }
+    }
+
+    @Test
+    void scopedAttributesAreOnlyRequestedForMatchingClients() {
+        SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+        KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class);
+        when(sessionFactory.getProviderFactory(eq(IdentityProviderMapper.class), any()))
+                .thenReturn(new BundIdUserSessionAttributeMapper());
+        underTest.postInit(sessionFactory);
+
+        RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn("realm");
+        IdentityProviderMapperModel scoped = createMapperModel("oid2");
+        scoped.getConfig().put(BundIdUserSessionAttributeMapper.CLIENT_SCOPES, "bundid-address, bundid-birth");
+        when(realm.getIdentityProviderMappersByAliasStream("bundid"))
+                .thenAnswer(invocation -> Stream.of(createMapperModel("oid1"), scoped));
+
+        ClientScopeModel addressScope = Mockito.mock(ClientScopeModel.class);
+        AuthenticationSessionModel withDefaultScope =
+                createAuthSession(realm, Map.of("bundid-address", addressScope), Map.of(), null);
+        AuthenticationSessionModel withoutScope = createAuthSession(realm, Map.of(), Map.of(), null);
+        AuthenticationSessionModel withOptionalScope =
+                createAuthSession(realm, Map.of(), Map.of("bundid-address", addressScope), "openid bundid-address");
+
+        assertEquals(List.of("oid1", "oid2"), requestedOids(underTest, withDefaultScope));
+        assertEquals(List.of("oid1"), requestedOids(underTest, withoutScope));
+        assertEquals(List.of("oid1", "oid2"), requestedOids(underTest, withOptionalScope));
+        verify(realm, times(1)).getIdentityProviderMappersByAliasStream("bundid");
+    }
+
+    @Test
+    void deltaModeSkipsAttributesHeldAtTheRequestedLevel() {
+        SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+        Config.Scope config = Mockito.mock(Config.Scope.class);
+        when(config.get("activeForIdp", "bundid")).thenReturn("bundid");
+        when(config.getBoolean("attributeDelta", false)).thenReturn(true);
+        underTest.init(config);
+        KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class);
+        when(sessionFactory.getProviderFactory(eq(IdentityProviderMapper.class), any()))
+                .thenReturn(new BundIdUserSessionAttributeMapper());
+        underTest.postInit(sessionFactory);
+
+        RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getIdentityProviderMappersByAliasStream("bundid"))
+                .thenAnswer(invocation -> Stream.of(
+                        createMapperModel("oid1", "givenName"),
+                        createMapperModel("oid2", "familyName"),
+                        createMapperModel("oid3", "birthName")));
+        AuthenticationSessionModel authSession = createAuthSession(realm, Map.of(), Map.of(), null);
+        when(authSession.getClientNote(Constants.REQUESTED_LEVEL_OF_AUTHENTICATION))
+                .thenReturn("3");
+        RootAuthenticationSessionModel rootSession = Mockito.mock(RootAuthenticationSessionModel.class);
+        when(rootSession.getId()).thenReturn("user-session-id");
+        when(authSession.getParentSession()).thenReturn(rootSession);
+
+        String prefix = BundIdUserSessionAttributeMapper.BUNDID_SESSION_ATTRIBUTE_PREFIX;
+        String suffix = BundIdUserSessionAttributeMapper.VERIFIED_LEVEL_SUFFIX;
+        UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getId()).thenReturn("user-session-id");
+        when(userSession.getNote(prefix + "givenName")).thenReturn("Erika");
+        when(userSession.getNote(prefix + "givenName" + suffix)).thenReturn(AuthnLevel.STORK4.getFullname());
+        when(userSession.getNote(prefix + "familyName")).thenReturn("Mustermann");
+        when(userSession.getNote(prefix + "familyName" + suffix)).thenReturn(AuthnLevel.STORK2.getFullname());
+        when(userSession.getNote(CompactSessionNote.NOTE)).thenReturn("compact");
+        KeycloakSession session = Mockito.mock(KeycloakSession.class, Answers.RETURNS_DEEP_STUBS);
+        when(session.sessions().getUserSession(realm, "user-session-id")).thenReturn(userSession);
+
+        KeycloakSessionUtil.setKeycloakSession(session);
+        try {
+            assertEquals(List.of("oid2", "oid3"), requestedOids(underTest, authSession));
+            // The BundID identity is not known yet, the mappers carry over the notes once it is verified
+            verify(authSession, never()).setUserSessionNote(anyString(), anyString());
+            verify(authSession).setAuthNote(ExistingUserSession.DELTA_NOTE, "user-session-id");
+        } finally {
+            KeycloakSessionUtil.setKeycloakSession(null);
+        }
+    }
+
+    @Test
+    void warmUpCreatesJaxbContextAtPostInit() {
+        AuthenticationRequestCodec previous = AuthenticationRequest.getCodec();
+        try {
+            SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+            Config.Scope config = Mockito.mock(Config.Scope.class);
+            when(config.get("activeForIdp", "bundid")).thenReturn("bundid");
+            when(config.get("xmlBinding")).thenReturn("jaxb");
+            when(config.get("xmlInit")).thenReturn("warmup");
+            underTest.init(config);
+            JaxbAuthenticationRequestCodec codec =
+                    assertInstanceOf(JaxbAuthenticationRequestCodec.class, AuthenticationRequest.getCodec());
+            assertFalse(codec.isContextCreated());
+
+            underTest.postInit(Mockito.mock(KeycloakSessionFactory.class));
+
+            assertTrue(codec.isContextCreated());
+        } finally {
+            AuthenticationRequest.setCodec(previous);
+        }
+    }
+
+    @Test
+    void failedWarmUpIsLoggedAndFallsBackToDom() {
+        AuthenticationRequestCodec previous = AuthenticationRequest.getCodec();
+        List<LogRecord> records = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        };
+        java.util.logging.Logger logger =
+                java.util.logging.Logger.getLogger(SamlAuthenticationPreprocessorImpl.class.getName());
+        logger.addHandler(handler);
+        try {
+            SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+            Config.Scope config = Mockito.mock(Config.Scope.class);
+            when(config.get("activeForIdp", "bundid")).thenReturn("bundid");
+            when(config.get("xmlInit")).thenReturn("warmup");
+            underTest.init(config);
+            AuthenticationRequestCodec failing = Mockito.mock(AuthenticationRequestCodec.class);
+            when(failing.write(any())).thenThrow(new IllegalStateException("no JAXB runtime"));
+            AuthenticationRequest.setCodec(failing);
+
+            underTest.postInit(Mockito.mock(KeycloakSessionFactory.class));
+
+            assertInstanceOf(DomAuthenticationRequestCodec.class, AuthenticationRequest.getCodec());
+            assertTrue(records.stream()
+                    .anyMatch(record -> record.getLevel().intValue() == Level.WARNING.intValue()
+                            && record.getMessage().contains("no JAXB runtime")));
+        } finally {
+            logger.removeHandler(handler);
+            AuthenticationRequest.setCodec(previous);
+        }
+    }
+
+    @Test
+    void metricsAreTaggedWithRealmAndIdp() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            SamlAuthenticationPreprocessorImpl underTest = new SamlAuthenticationPreprocessorImpl();
+            KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class);
+            when(sessionFactory.getProviderFactory(eq(IdentityProviderMapper.class), any()))
+                    .thenReturn(new BundIdUserSessionAttributeMapper());
+            underTest.postInit(sessionFactory);
+
+            RealmModel realm = Mockito.mock(RealmModel.class);
+            when(realm.getId()).thenReturn("realm-id");
+            when(realm.getName()).thenReturn("citizens");
+            when(realm.getIdentityProviderMappersByAliasStream("bundid"))
+                    .thenAnswer(invocation -> Stream.of(createMapperModel("oid1"), createMapperModel("oid2")));
+            AuthenticationSessionModel authSession = createAuthSession(realm, Map.of(), Map.of(), null);
+
+            // The second request gets a copy of the cached extension
+            underTest.beforeSendingLoginRequest(createBundIdRequest(), authSession);
+            underTest.beforeSendingLoginRequest(createBundIdRequest(), authSession);
+            AuthnRequestType other = new AuthnRequestType("myId", null);
+            other.setAssertionConsumerServiceURL(URI.create("http://localhost:8081/bla/broker/muk/endpoint"));
+            underTest.beforeSendingLoginRequest(other, authSession);
+
+            assertEquals(
+                    2,
+                    registry.get("bundid.authn.request")
+                            .tags("realm", "citizens", "idp", "bundid", "outcome", BundIdMetrics.OUTCOME_APPLIED)
+                            .timer()
+                            .count());
+            assertEquals(
+                    1,
+                    registry.get("bundid.authn.request")
+                            .tags("realm", "citizens", "idp", "muk", "outcome", BundIdMetrics.OUTCOME_IDP_MISMATCH)
+                            .timer()
+                            .count());
+            DistributionSummary attributes = registry.get("bundid.authn.request.attributes")
+                    .tags("realm", "citizens", "idp", "bundid")
+                    .summary();
+            assertEquals(2, attributes.count());
+            assertEquals(4, attributes.totalAmount());
+            DistributionSummary size = registry.get("bundid.authn.request.extension.size")
+                    .tags("realm", "citizens", "idp", "bundid")
+                    .summary();
+            assertEquals(2, size.count());
+            assertTrue(size.max() > 0);
+        } finally {
+            Metrics.removeRegistry(registry);
+        }
+    }
+
+    private static AuthenticationSessionModel createAuthSession(
+            RealmModel realm,
+            Map<String, ClientScopeModel> defaultScopes,
+            Map<String, ClientScopeModel> optionalScopes,
+            String scopeParam) {
+        ClientModel client = Mockito.mock(ClientModel.class);
+        when(client.getClientScopes(true)).thenReturn(defaultScopes);
+        when(client.getClientScopes(false)).thenReturn(optionalScopes);
+        AuthenticationSessionModel authSession = Mockito.mock(AuthenticationSessionModel.class);
+        when(authSession.getRealm()).thenReturn(realm);
+        when(authSession.getClient()).thenReturn(client);
+        when(authSession.getClientNote(OIDCLoginProtocol.SCOPE_PARAM)).thenReturn(scopeParam);
+        return authSession;
+    }
+
+    private static List<String> requestedOids(
+            SamlAuthenticationPreprocessorImpl underTest, AuthenticationSessionModel authSession) {
+        AuthnRequestType result = underTest.beforeSendingLoginRequest(createBundIdRequest(), authSession);
+        return AuthenticationRequest.readExisting(result).getRequestedAttributes().getRequestedAttributes().stream()
+                .map(RequestedAttribute::getName)
+                .toList();
+    }
+
+    private static AuthnRequestType createBundIdRequest() {
+        AuthnRequestType authnRequest = new AuthnRequestType("myId", null);
+        authnRequest.setAssertionConsumerServiceURL(URI.create("http://localhost:8081/bla/broker/bundid/endpoint"));
+        return authnRequest;
+    }
+
+    private static IdentityProviderMapperModel createMapperModel(String oid, String sessionAttribute) {
+        IdentityProviderMapperModel mapperModel = createMapperModel(oid);
+        mapperModel.getConfig().put(BundIdUserSessionAttributeMapper.SESSION_ATTRIBUTE, sessionAttribute);
+        return mapperModel;
+    }
+
+    private static IdentityProviderMapperModel createMapperModel(String oid) {
+        IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+        mapperModel.setIdentityProviderMapper(BundIdUserSessionAttributeMapper.PROVIDER_ID);
+        mapperModel.setConfig(new HashMap<>());
+        mapperModel.getConfig().put(BundIdUserSessionAttributeMapper.ATTRIBUTE_OID, oid);
+        return mapperModel;
+    }
+
+    // Only implements the updateRequest variant taking the AuthnRequestType
+    private static class LegacyNameIdPolicyMapper extends AbstractIdentityProviderMapper
+            implements SamlAuthnRequestUpdater {
+        static final String PROVIDER_ID = "legacy-name-id-policy-mapper";
+
+        @Override
+        public void updateRequest(IdentityProviderMapperModel mapperModel, AuthnRequestType authnRequest) {
+            NameIDPolicyType nameIdPolicy = new NameIDPolicyType();
+            nameIdPolicy.setFormat(JBossSAMLURIConstants.NAMEID_FORMAT_PERSISTENT.getUri());
+            authnRequest.setNameIDPolicy(nameIdPolicy);
+        }
+
+        @Override
+        public String[] getCompatibleProviders() {
+            return new String[] {ANY_PROVIDER};
+        }
+
+        @Override
+        public String getDisplayCategory() {
+            return "Test";
+        }
+
+        @Override
+        public String getDisplayType() {
+            return "Legacy";
+        }
+
+        @Override
+        public String getHelpText() {
+            return null;
+        }
+
+        @Override
+        public List<ProviderConfigProperty> getConfigProperties() {
+            return List.of();
+        }
+
+        @Override
+        public String getId() {
+            return PROVIDER_ID;
+        }
+    }
 }